@@ -34,12 +34,23 @@ class MainViewModel extends AndroidViewModel {
 	private static final String CDN77_FRONT = "www.phpmyadmin.net";
 
 	private final ExecutorService backgroundExecutor;
+	private final MoatApi moat;
 	private final MutableLiveData<String> response = new MutableLiveData<>();
 
 	@Inject
 	public MainViewModel(@NonNull Application application, ExecutorService backgroundExecutor) {
 		super(application);
 		this.backgroundExecutor = backgroundExecutor;
+		String nativeLibDir = application.getApplicationInfo().nativeLibraryDir;
+		File lyrebirdLib = new File(nativeLibDir, LYREBIRD_LIB_NAME);
+		File stateDir = application.getDir(STATE_DIR_NAME, MODE_PRIVATE);
+		// On API level < 25, add the ISRG root certificate which devices don't have by default
+		moat = new MoatApi(lyrebirdLib, stateDir, CDN77_URL, CDN77_FRONT, SDK_INT < 25);
+	}
+
+	@Override
+	protected void onCleared() {
+		backgroundExecutor.execute(moat::close);
 	}
 
 	@UiThread
@@ -56,11 +67,6 @@ class MainViewModel extends AndroidViewModel {
 	private void sendRequestInBackground(String countryCode) {
 		countryCode = countryCode.toLowerCase(ROOT);
 		Application app = getApplication();
-		String nativeLibDir = app.getApplicationInfo().nativeLibraryDir;
-		File lyrebirdLib = new File(nativeLibDir, LYREBIRD_LIB_NAME);
-		File stateDir = app.getDir(STATE_DIR_NAME, MODE_PRIVATE);
-		// On API level < 25, add the ISRG root certificate which devices don't have by default
-		MoatApi moat = new MoatApi(lyrebirdLib, stateDir, CDN77_URL, CDN77_FRONT, SDK_INT < 25);
 		try {
 			List<Bridges> bridges = moat.getWithCountry(countryCode);
 			StringBuilder sb = new StringBuilder();
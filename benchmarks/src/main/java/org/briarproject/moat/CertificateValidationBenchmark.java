@@ -0,0 +1,120 @@
+package org.briarproject.moat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static org.briarproject.nullsafety.NullSafety.requireNonNull;
+
+/**
+ * Measures the validation of a certificate chain against the authority
+ * that's added to the default trust store. The chain in the resources was
+ * generated with OpenSSL and has the same shape as the Moat server's chain:
+ * a leaf certificate, an intermediate and a root.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CertificateValidationBenchmark {
+
+	private X509Certificate authority;
+	private X509Certificate[] chain;
+	private byte[] leafBytes, intermediateBytes;
+	private CertificateFactory certFactory;
+	private VerifiedChainCache verifiedChains;
+
+	@Setup
+	public void setup() throws IOException, CertificateException {
+		// Logging is enabled at the default level in production, but
+		// printing every message would distort the results
+		Logger.getLogger(MoatApi.class.getName()).setLevel(Level.WARNING);
+		certFactory = CertificateFactory.getInstance("X509");
+		authority = parseCertificate(loadResource("chain/root.der"));
+		leafBytes = loadResource("chain/leaf.der");
+		intermediateBytes = loadResource("chain/intermediate.der");
+		chain = new X509Certificate[]{
+				parseCertificate(leafBytes),
+				parseCertificate(intermediateBytes)
+		};
+		verifiedChains = new VerifiedChainCache(16);
+		verifiedChains.add(requireNonNull(VerifiedChainCache.getKey(chain)), chain);
+	}
+
+	/**
+	 * Validates the same chain repeatedly. The JDK's certificates remember
+	 * the result of signature verification, so this measures the cost of the
+	 * other checks.
+	 */
+	@Benchmark
+	public X509Certificate[] validateCertificateChain() throws CertificateException {
+		MoatApi.validateCertificateChain(chain, authority);
+		return chain;
+	}
+
+	/**
+	 * Parses the chain from its encoding and validates it, as happens for
+	 * each TLS handshake. Like the JDK's TLS implementation, this gets
+	 * certificates from a factory that caches them by their encoding.
+	 */
+	@Benchmark
+	public X509Certificate[] parseAndValidateCertificateChain() throws CertificateException {
+		X509Certificate[] fresh = new X509Certificate[]{
+				parseCertificate(leafBytes),
+				parseCertificate(intermediateBytes)
+		};
+		MoatApi.validateCertificateChain(fresh, authority);
+		return fresh;
+	}
+
+	/**
+	 * Looks up a new chain in the cache of verified chains, as happens for
+	 * repeated handshakes with the same server.
+	 */
+	@Benchmark
+	public boolean parseAndLookUpVerifiedChain() throws CertificateException {
+		X509Certificate[] fresh = new X509Certificate[]{
+				parseCertificate(leafBytes),
+				parseCertificate(intermediateBytes)
+		};
+		ByteBuffer key = requireNonNull(VerifiedChainCache.getKey(fresh));
+		return verifiedChains.isVerified(key, System.currentTimeMillis());
+	}
+
+	private X509Certificate parseCertificate(byte[] encoded) throws CertificateException {
+		return (X509Certificate) certFactory.generateCertificate(
+				new ByteArrayInputStream(encoded));
+	}
+
+	private static byte[] loadResource(String name) throws IOException {
+		try (InputStream in = requireNonNull(CertificateValidationBenchmark.class
+				.getClassLoader().getResourceAsStream(name))) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[4096];
+			int read;
+			while ((read = in.read(buf)) != -1) out.write(buf, 0, read);
+			return out.toByteArray();
+		}
+	}
+}
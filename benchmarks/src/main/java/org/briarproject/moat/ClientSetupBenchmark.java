@@ -0,0 +1,95 @@
+package org.briarproject.moat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.X509TrustManager;
+
+import okhttp3.OkHttpClient;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+
+/**
+ * Measures the setup that happens before the first request: creating the
+ * trust manager and socket factory that add the ISRG root certificate, and
+ * building the base client and the per-front clients derived from it. The
+ * trust manager and socket factory are shared by all instances, so building
+ * the base client only creates them once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClientSetupBenchmark {
+
+	private final DomainFront front = new DomainFront("https://meek.example/",
+			"front.example");
+
+	private File dir;
+	private MoatApi api;
+	private X509TrustManager trustManager;
+	private OkHttpClient baseClient;
+
+	@Setup
+	public void setup() throws Exception {
+		Logger.getLogger(MoatApi.class.getName()).setLevel(Level.WARNING);
+		dir = File.createTempFile("moat", "benchmark");
+		if (!dir.delete() || !dir.mkdir()) throw new IOException();
+		// Lyrebird isn't started unless a request is made
+		api = new MoatApi.Builder(new File(dir, "lyrebird"), dir, front.url, front.front)
+				.addIsrgRootCertificate(true)
+				.build();
+		trustManager = IsrgTrustManager.create();
+		baseClient = api.createBaseClient();
+	}
+
+	@TearDown
+	public void tearDown() {
+		api.close();
+		if (!dir.delete()) dir.deleteOnExit();
+	}
+
+	@Benchmark
+	public X509TrustManager createTrustManager() throws IOException, GeneralSecurityException {
+		return IsrgTrustManager.create();
+	}
+
+	@Benchmark
+	public X509TrustManager getSharedTrustManager() throws IOException,
+			GeneralSecurityException {
+		return IsrgTrustManager.getInstance();
+	}
+
+	@Benchmark
+	public SSLSocketFactory createSslSocketFactory() throws GeneralSecurityException {
+		return IsrgTrustManager.createSocketFactory(trustManager);
+	}
+
+	@Benchmark
+	public OkHttpClient createBaseClient() throws IOException {
+		return api.createBaseClient();
+	}
+
+	@Benchmark
+	public OkHttpClient createClient() {
+		return api.createClient(baseClient, 9050, front);
+	}
+}
@@ -0,0 +1,88 @@
+package org.briarproject.moat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Measures the latency and throughput of concurrent requests to a local
+ * {@link MoatServer} through {@link FakeLyrebird}. This exercises the whole
+ * request path, including the SOCKS connection, TLS and parsing, without
+ * depending on the network.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.SampleTime, Mode.Throughput})
+@OutputTimeUnit(MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class LocalMoatApiBenchmark {
+
+	@Param({"0", "50"})
+	public long serverDelayMs;
+
+	@Param({"2", "500"})
+	public int bridgesPerType;
+
+	private File dir;
+	private MoatServer server;
+	private MoatApi api;
+
+	@Setup
+	public void setup() throws IOException {
+		Logger.getLogger("org.briarproject.moat").setLevel(Level.WARNING);
+		dir = File.createTempFile("moat", "benchmark");
+		if (!dir.delete() || !dir.mkdir()) throw new IOException();
+		server = new MoatServer();
+		server.setDelay(serverDelayMs);
+		server.setBridgesPerType(bridgesPerType);
+		File lyrebird = FakeLyrebird.createExecutable(dir, server.getPort());
+		api = new MoatApi.Builder(lyrebird, dir, "https://meek.example/", "front.example")
+				.trustManager(server.getTrustManager())
+				.build();
+	}
+
+	@TearDown
+	public void tearDown() {
+		api.close();
+		server.close();
+		File[] files = dir.listFiles();
+		if (files != null) for (File f : files) f.deleteOnExit();
+		dir.deleteOnExit();
+	}
+
+	@State(Scope.Thread)
+	public static class ThreadState {
+
+		private static final AtomicInteger NEXT_ID = new AtomicInteger();
+
+		// Each thread requests a different country, so that concurrent
+		// requests aren't coalesced into a single upstream request
+		private final String country = "c" + NEXT_ID.getAndIncrement();
+	}
+
+	@Benchmark
+	public List<Bridges> getWithCountry(ThreadState state) throws IOException {
+		return api.getWithCountry(state.country);
+	}
+}
@@ -0,0 +1,106 @@
+package org.briarproject.moat;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.fasterxml.jackson.databind.MapperFeature.BLOCK_UNSAFE_POLYMORPHIC_BASE_TYPES;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+
+/**
+ * Compares the streaming response parser with the previous approach of
+ * reading the response into a string and parsing it into a tree.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseParserBenchmark {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	@Param({"2", "100", "5000"})
+	public int bridgesPerType;
+
+	private final JsonMapper mapper = JsonMapper.builder()
+			.enable(BLOCK_UNSAFE_POLYMORPHIC_BASE_TYPES)
+			.build();
+	private byte[] response;
+
+	@Setup
+	public void setup() {
+		response = createSettingsJson(bridgesPerType).getBytes(UTF_8);
+	}
+
+	@Benchmark
+	public List<Bridges> parseStreaming() throws IOException {
+		return ResponseParser.parseResponse(new ByteArrayInputStream(response));
+	}
+
+	@Benchmark
+	public List<Bridges> parseStringAndTree() throws IOException {
+		String json = readString(new ByteArrayInputStream(response));
+		JsonNode settings = mapper.readTree(json).get("settings");
+		if (settings == null || !settings.isArray()) throw new IOException();
+		List<Bridges> bridges = new ArrayList<>();
+		for (JsonNode n : settings) {
+			JsonNode b = n.get("bridges");
+			List<String> bridgeStrings = new ArrayList<>();
+			for (JsonNode s : b.get("bridge_strings")) bridgeStrings.add(s.asText());
+			bridges.add(new Bridges(b.get("type").asText(), b.get("source").asText(),
+					bridgeStrings));
+		}
+		return bridges;
+	}
+
+	// Like ResponseBody#string(), which buffers the whole response
+	private static String readString(InputStream in) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		Reader reader = new InputStreamReader(in, UTF_8);
+		char[] buf = new char[8192];
+		int read;
+		while ((read = reader.read(buf)) != -1) sb.append(buf, 0, read);
+		return sb.toString();
+	}
+
+	static String createSettingsJson(int bridgesPerType) {
+		StringBuilder sb = new StringBuilder("{\"settings\": [");
+		String[] types = {"obfs4", "snowflake"};
+		for (int t = 0; t < types.length; t++) {
+			if (t > 0) sb.append(", ");
+			sb.append("{\"bridges\": {\"type\": \"").append(types[t])
+					.append("\", \"source\": \"builtin\", \"bridge_strings\": [");
+			for (int i = 0; i < bridgesPerType; i++) {
+				if (i > 0) sb.append(", ");
+				sb.append("\"").append(types[t]).append(" 192.0.2.").append(i % 250)
+						.append(":443 8DFCD8FB3285E855F5A55EDDA35696C743ABFC4E")
+						.append(" cert=p9L6+25s8bnfkye1ZxFeAE4mAGY7DH4Gaj7dxngIIzP9Btqr")
+						.append("HHwZXdjMK0RVIQ34C7aqZw iat-mode=0\"");
+			}
+			sb.append("]}}");
+		}
+		return sb.append("], \"country\": \"cn\"}").toString();
+	}
+}
@@ -0,0 +1,38 @@
+package org.briarproject.moat;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A token bucket that limits retries and hedged attempts. Each request adds
+ * a fraction of a token, and each extra attempt takes a whole token, so
+ * extra attempts are limited to that fraction of requests once the initial
+ * tokens have been used.
+ */
+@ThreadSafe
+@NotNullByDefault
+class AttemptBudget {
+
+	static final int MAX_TOKENS = 10;
+
+	private final double ratio;
+
+	@GuardedBy("this")
+	private double tokens = MAX_TOKENS;
+
+	AttemptBudget(double ratio) {
+		this.ratio = ratio;
+	}
+
+	synchronized void onRequest() {
+		tokens = Math.min(MAX_TOKENS, tokens + ratio);
+	}
+
+	synchronized boolean tryAcquire() {
+		if (tokens < 1) return false;
+		tokens--;
+		return true;
+	}
+}
@@ -0,0 +1,46 @@
+package org.briarproject.moat;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A callback that allows a thread to wait for the result of an asynchronous
+ * request.
+ */
+@NotNullByDefault
+class BlockingCallback<T> implements ResultCallback<T> {
+
+	private final BlockingQueue<Object> result = new LinkedBlockingQueue<>();
+
+	@Override
+	public void onResult(T t) {
+		result.add(t);
+	}
+
+	@Override
+	public void onFailure(IOException e) {
+		result.add(e);
+	}
+
+	/**
+	 * Waits for the given call to complete and returns its result. If the
+	 * calling thread is interrupted, the call is cancelled.
+	 */
+	@SuppressWarnings("unchecked")
+	T await(MoatCall call) throws IOException {
+		Object o;
+		try {
+			o = result.take();
+		} catch (InterruptedException e) {
+			call.cancel();
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		if (o instanceof IOException) throw (IOException) o;
+		return (T) o;
+	}
+}
@@ -0,0 +1,137 @@
+package org.briarproject.moat;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.unmodifiableMap;
+
+/**
+ * A structured view of a bridge line, such as
+ * {@code obfs4 192.0.2.1:443 <fingerprint> cert=... iat-mode=0}. The line is
+ * parsed the first time any of its parts is requested.
+ */
+@Immutable
+@NotNullByDefault
+public class BridgeLine {
+
+	private final String line;
+
+	@Nullable
+	private volatile Parsed parsed = null;
+
+	public BridgeLine(String line) {
+		this.line = line;
+	}
+
+	public String getLine() {
+		return line;
+	}
+
+	/**
+	 * Returns the transport, or an empty string for a bridge without a
+	 * pluggable transport.
+	 */
+	public String getTransport() {
+		return getParsed().transport;
+	}
+
+	/**
+	 * Returns the address and port, or an empty string if the line is
+	 * malformed.
+	 */
+	public String getAddress() {
+		return getParsed().address;
+	}
+
+	@Nullable
+	public String getFingerprint() {
+		return getParsed().fingerprint;
+	}
+
+	/**
+	 * Returns the transport's parameters, such as {@code cert} and
+	 * {@code iat-mode}, in the order they appear in the line.
+	 */
+	public Map<String, String> getParams() {
+		return getParsed().params;
+	}
+
+	@Nullable
+	public String getParam(String key) {
+		return getParsed().params.get(key);
+	}
+
+	private Parsed getParsed() {
+		// Parsing is idempotent, so it doesn't matter if two threads race
+		Parsed p = parsed;
+		if (p == null) {
+			p = parse(line);
+			parsed = p;
+		}
+		return p;
+	}
+
+	private static Parsed parse(String line) {
+		String[] tokens = line.trim().split("\\s+");
+		int i = 0;
+		String transport = "";
+		// A line without a transport starts with the address
+		if (tokens.length > 0 && !isAddress(tokens[0])) transport = tokens[i++];
+		String address = i < tokens.length ? tokens[i++] : "";
+		String fingerprint = null;
+		if (i < tokens.length && tokens[i].indexOf('=') == -1) fingerprint = tokens[i++];
+		if (i == tokens.length) return new Parsed(transport, address, fingerprint, emptyMap());
+		Map<String, String> params = new LinkedHashMap<>();
+		for (; i < tokens.length; i++) {
+			int equals = tokens[i].indexOf('=');
+			if (equals == -1) params.put(tokens[i], "");
+			else params.put(tokens[i].substring(0, equals), tokens[i].substring(equals + 1));
+		}
+		return new Parsed(transport, address, fingerprint, unmodifiableMap(params));
+	}
+
+	private static boolean isAddress(String token) {
+		if (token.isEmpty()) return false;
+		char first = token.charAt(0);
+		return first == '[' || (first >= '0' && first <= '9' && token.indexOf(':') != -1);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof BridgeLine && line.equals(((BridgeLine) o).line);
+	}
+
+	@Override
+	public int hashCode() {
+		return line.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return line;
+	}
+
+	@Immutable
+	@NotNullByDefault
+	private static class Parsed {
+
+		private final String transport, address;
+		@Nullable
+		private final String fingerprint;
+		private final Map<String, String> params;
+
+		private Parsed(String transport, String address, @Nullable String fingerprint,
+				Map<String, String> params) {
+			this.transport = transport;
+			this.address = address;
+			this.fingerprint = fingerprint;
+			this.params = params;
+		}
+	}
+}
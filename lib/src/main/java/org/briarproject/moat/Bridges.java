@@ -2,17 +2,38 @@ package org.briarproject.moat;
 
 import org.briarproject.nullsafety.NotNullByDefault;
 
+import java.util.ArrayList;
 import java.util.List;
 
+import javax.annotation.Nullable;
+
 @NotNullByDefault
 public class Bridges {
 
 	public final String type, source;
 	public final List<String> bridgeStrings;
 
+	@Nullable
+	private volatile List<BridgeLine> bridgeLines = null;
+
 	public Bridges(String type, String source, List<String> bridgeStrings) {
 		this.type = type;
 		this.source = source;
 		this.bridgeStrings = bridgeStrings;
 	}
+
+	/**
+	 * Returns a structured view of each bridge line. Each line is parsed
+	 * the first time any of its parts is requested.
+	 */
+	public List<BridgeLine> getBridgeLines() {
+		List<BridgeLine> lines = bridgeLines;
+		if (lines == null) {
+			List<BridgeLine> views = new ArrayList<>(bridgeStrings.size());
+			for (String s : bridgeStrings) views.add(new BridgeLine(s));
+			lines = CompactList.copyOf(views);
+			bridgeLines = lines;
+		}
+		return lines;
+	}
 }
@@ -0,0 +1,80 @@
+package org.briarproject.moat;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * An in-memory LRU cache of Moat responses, keyed by country code. Entries
+ * are fresh until the TTL expires, and may then be served while stale for up
+ * to the given maximum staleness while they're refreshed.
+ */
+@ThreadSafe
+@NotNullByDefault
+class BridgesCache {
+
+	@NotNullByDefault
+	static class Entry {
+
+		final List<Bridges> bridges;
+		final long timestamp;
+
+		Entry(List<Bridges> bridges, long timestamp) {
+			this.bridges = bridges;
+			this.timestamp = timestamp;
+		}
+	}
+
+	private final long ttlMs, maxStaleMs;
+
+	@GuardedBy("this")
+	private final LinkedHashMap<String, Entry> entries;
+
+	BridgesCache(int maxEntries, long ttlMs, long maxStaleMs) {
+		if (maxEntries < 1 || ttlMs < 0 || maxStaleMs < 0) throw new IllegalArgumentException();
+		this.ttlMs = ttlMs;
+		this.maxStaleMs = maxStaleMs;
+		entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, BridgesCache.Entry> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Returns the cached entry for the given country, or null if there's no
+	 * entry or it's too stale to be served.
+	 */
+	@Nullable
+	synchronized Entry get(String country, long now) {
+		Entry e = entries.get(country);
+		if (e == null) return null;
+		if (isExpired(e, now)) {
+			entries.remove(country);
+			return null;
+		}
+		return e;
+	}
+
+	synchronized void put(String country, List<Bridges> bridges, long now) {
+		entries.put(country, new Entry(bridges, now));
+	}
+
+	boolean isFresh(Entry e, long now) {
+		return now - e.timestamp <= ttlMs;
+	}
+
+	/**
+	 * Returns true if the given entry is too stale to be served.
+	 */
+	boolean isExpired(Entry e, long now) {
+		return now - e.timestamp > ttlMs + maxStaleMs;
+	}
+}
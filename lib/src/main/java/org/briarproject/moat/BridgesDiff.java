@@ -0,0 +1,119 @@
+package org.briarproject.moat;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * The bridge lines that were added and removed between two results, grouped
+ * by type and source.
+ */
+@Immutable
+@NotNullByDefault
+public class BridgesDiff {
+
+	/**
+	 * The version of the newer result, which can be passed to
+	 * {@link MoatApi#diff(String, List)} to compute the next diff.
+	 */
+	public final String version;
+
+	/**
+	 * The lines in the newer result that weren't in the older result, with
+	 * one entry for each type and source that has added lines.
+	 */
+	public final List<Bridges> added;
+
+	/**
+	 * The lines in the older result that aren't in the newer result, with
+	 * one entry for each type and source that has removed lines.
+	 */
+	public final List<Bridges> removed;
+
+	BridgesDiff(String version, List<Bridges> added, List<Bridges> removed) {
+		this.version = version;
+		this.added = added;
+		this.removed = removed;
+	}
+
+	public boolean isEmpty() {
+		return added.isEmpty() && removed.isEmpty();
+	}
+
+	/**
+	 * Computes the diff between two results in time proportional to the
+	 * number of lines.
+	 */
+	static BridgesDiff compute(List<Bridges> previous, List<Bridges> current, String version) {
+		Map<Key, Set<String>> before = group(previous), after = group(current);
+		List<Bridges> added = new ArrayList<>(), removed = new ArrayList<>();
+		for (Map.Entry<Key, Set<String>> e : after.entrySet()) {
+			addDifference(e.getKey(), e.getValue(), before.get(e.getKey()), added);
+		}
+		for (Map.Entry<Key, Set<String>> e : before.entrySet()) {
+			addDifference(e.getKey(), e.getValue(), after.get(e.getKey()), removed);
+		}
+		return new BridgesDiff(version, CompactList.copyOf(added), CompactList.copyOf(removed));
+	}
+
+	private static Map<Key, Set<String>> group(List<Bridges> bridges) {
+		Map<Key, Set<String>> groups = new LinkedHashMap<>();
+		for (Bridges b : bridges) {
+			Key key = new Key(b.type, b.source);
+			Set<String> lines = groups.get(key);
+			if (lines == null) {
+				lines = new LinkedHashSet<>();
+				groups.put(key, lines);
+			}
+			lines.addAll(b.bridgeStrings);
+		}
+		return groups;
+	}
+
+	/**
+	 * Adds the lines that are in {@code lines} but not {@code others} to the
+	 * given list, if there are any.
+	 */
+	private static void addDifference(Key key, Set<String> lines, @Nullable Set<String> others,
+			List<Bridges> out) {
+		List<String> difference = new ArrayList<>();
+		for (String line : lines) {
+			if (others == null || !others.contains(line)) difference.add(line);
+		}
+		if (!difference.isEmpty()) {
+			out.add(new Bridges(key.type, key.source, CompactList.copyOf(difference)));
+		}
+	}
+
+	@Immutable
+	@NotNullByDefault
+	private static class Key {
+
+		private final String type, source;
+
+		private Key(String type, String source) {
+			this.type = type;
+			this.source = source;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			return type.equals(k.type) && source.equals(k.source);
+		}
+
+		@Override
+		public int hashCode() {
+			return type.hashCode() * 31 + source.hashCode();
+		}
+	}
+}
@@ -0,0 +1,20 @@
+package org.briarproject.moat;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the HTTP client can't be set up, for example because the trust
+ * store can't be loaded. This is a configuration error, so it isn't the
+ * fault of any front and retrying won't help.
+ */
+@NotNullByDefault
+class ClientSetupException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	ClientSetupException(Throwable cause) {
+		super(cause);
+	}
+}
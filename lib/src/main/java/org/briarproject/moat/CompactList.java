@@ -0,0 +1,50 @@
+package org.briarproject.moat;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.List;
+import java.util.RandomAccess;
+
+import javax.annotation.concurrent.Immutable;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+
+/**
+ * An immutable list backed by an array of exactly the right size, which
+ * uses less memory than an unmodifiable view of an {@link java.util.ArrayList}.
+ */
+@Immutable
+@NotNullByDefault
+class CompactList<E> extends AbstractList<E> implements RandomAccess {
+
+	private final Object[] elements;
+
+	private CompactList(Object[] elements) {
+		this.elements = elements;
+	}
+
+	static <E> List<E> copyOf(Collection<? extends E> c) {
+		if (c instanceof CompactList) {
+			@SuppressWarnings("unchecked")
+			List<E> list = (List<E>) c;
+			return list;
+		}
+		if (c.isEmpty()) return emptyList();
+		if (c.size() == 1) return singletonList(c.iterator().next());
+		return new CompactList<>(c.toArray());
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public E get(int index) {
+		return (E) elements[index];
+	}
+
+	@Override
+	public int size() {
+		return elements.length;
+	}
+}
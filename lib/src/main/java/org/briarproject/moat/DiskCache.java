@@ -0,0 +1,154 @@
+package org.briarproject.moat;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import static java.util.logging.Logger.getLogger;
+
+/**
+ * Stores responses on disk, one file per country, so that the last known
+ * good bridges are available immediately after a restart. Each file is
+ * written to a temporary file, synced to disk and then renamed, so readers
+ * never see a partially written file.
+ */
+@ThreadSafe
+@NotNullByDefault
+class DiskCache {
+
+	private static final Logger LOG = getLogger(DiskCache.class.getName());
+
+	private static final int MAGIC = 0x4d4f4154; // "MOAT"
+	private static final int VERSION = 1;
+	private static final String SUFFIX = ".bridges";
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final String DEFAULT_COUNTRY = "_default";
+	private static final Pattern COUNTRY = Pattern.compile("[a-z0-9-]{1,32}");
+
+	private final File dir;
+	private final long maxAgeMs;
+
+	DiskCache(File dir, long maxAgeMs) {
+		this.dir = dir;
+		this.maxAgeMs = maxAgeMs;
+	}
+
+	/**
+	 * Returns the stored entry for the given country, or null if there's no
+	 * entry, it has expired or it can't be read.
+	 */
+	@Nullable
+	BridgesCache.Entry load(String country, long now) {
+		File file = getFile(country);
+		if (file == null || !file.exists()) return null;
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+				throw new IOException("Unsupported format");
+			}
+			long timestamp = in.readLong();
+			long expiry = in.readLong();
+			if (now > expiry) {
+				delete(file);
+				return null;
+			}
+			// Each setting and line takes at least two bytes, so a count larger
+			// than the file must be corrupt
+			long maxCount = file.length() / 2;
+			int settings = readCount(in, maxCount);
+			List<Bridges> bridges = new ArrayList<>(settings);
+			for (int i = 0; i < settings; i++) {
+				String type = StringInterner.intern(in.readUTF());
+				String source = StringInterner.intern(in.readUTF());
+				int lines = readCount(in, maxCount);
+				List<String> bridgeStrings = new ArrayList<>(lines);
+				for (int j = 0; j < lines; j++) {
+					bridgeStrings.add(StringInterner.intern(in.readUTF()));
+				}
+				bridges.add(new Bridges(type, source, CompactList.copyOf(bridgeStrings)));
+			}
+			return new BridgesCache.Entry(CompactList.copyOf(bridges), timestamp);
+		} catch (IOException e) {
+			LOG.warning("Failed to read cached bridges: " + e);
+			delete(file);
+			return null;
+		}
+	}
+
+	private static int readCount(DataInputStream in, long maxCount) throws IOException {
+		int count = in.readInt();
+		if (count < 0 || count > maxCount) throw new IOException("Invalid count: " + count);
+		return count;
+	}
+
+	void store(String country, List<Bridges> bridges, long now) {
+		File file = getFile(country);
+		if (file == null) return;
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			LOG.warning("Failed to create cache directory");
+			return;
+		}
+		// Use a unique temporary file in case the same country is stored
+		// concurrently
+		File temp = null;
+		try {
+			temp = File.createTempFile(file.getName(), TEMP_SUFFIX, dir);
+			write(temp, bridges, now);
+		} catch (IOException e) {
+			LOG.warning("Failed to write cached bridges: " + e);
+			if (temp != null) delete(temp);
+			return;
+		}
+		if (!temp.renameTo(file)) {
+			LOG.warning("Failed to rename cached bridges");
+			delete(temp);
+		}
+	}
+
+	private void write(File temp, List<Bridges> bridges, long now) throws IOException {
+		FileOutputStream fileOut = new FileOutputStream(temp);
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+			out.writeInt(MAGIC);
+			out.writeByte(VERSION);
+			out.writeLong(now);
+			out.writeLong(now + maxAgeMs);
+			out.writeInt(bridges.size());
+			for (Bridges b : bridges) {
+				out.writeUTF(b.type);
+				out.writeUTF(b.source);
+				out.writeInt(b.bridgeStrings.size());
+				for (String line : b.bridgeStrings) out.writeUTF(line);
+			}
+			out.flush();
+			// Make sure the file is on disk before it's renamed, so a crash
+			// can't leave an empty or partial file in its place
+			fileOut.getFD().sync();
+		}
+	}
+
+	@Nullable
+	private File getFile(String country) {
+		if (country.isEmpty()) return new File(dir, DEFAULT_COUNTRY + SUFFIX);
+		// Don't cache countries that can't safely be used as filenames
+		if (!COUNTRY.matcher(country).matches()) return null;
+		return new File(dir, country + SUFFIX);
+	}
+
+	private void delete(File file) {
+		if (file.exists() && !file.delete()) LOG.warning("Failed to delete " + file.getName());
+	}
+}
@@ -0,0 +1,36 @@
+package org.briarproject.moat;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import javax.annotation.Nullable;
+
+/**
+ * A meek URL and the front domain used to reach it.
+ */
+@NotNullByDefault
+public class DomainFront {
+
+	public final String url, front;
+
+	public DomainFront(String url, String front) {
+		this.url = url;
+		this.front = front;
+	}
+
+	@Override
+	public boolean equals(@Nullable Object o) {
+		if (!(o instanceof DomainFront)) return false;
+		DomainFront f = (DomainFront) o;
+		return url.equals(f.url) && front.equals(f.front);
+	}
+
+	@Override
+	public int hashCode() {
+		return url.hashCode() * 31 + front.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return front;
+	}
+}
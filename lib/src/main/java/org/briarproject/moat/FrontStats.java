@@ -0,0 +1,34 @@
+package org.briarproject.moat;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+/**
+ * A snapshot of the success rate and latency of requests through a front.
+ */
+@NotNullByDefault
+public class FrontStats {
+
+	public final DomainFront front;
+	public final int successes, failures, consecutiveFailures;
+	/**
+	 * Exponentially weighted moving average of the latency of successful
+	 * requests, in milliseconds, or -1 if there have been no successful
+	 * requests.
+	 */
+	public final long averageLatencyMs;
+	/**
+	 * The time in milliseconds since the epoch until which the front will
+	 * only be tried after other fronts, or 0 if the front isn't backed off.
+	 */
+	public final long backoffUntil;
+
+	FrontStats(DomainFront front, int successes, int failures, int consecutiveFailures,
+			long averageLatencyMs, long backoffUntil) {
+		this.front = front;
+		this.successes = successes;
+		this.failures = failures;
+		this.consecutiveFailures = consecutiveFailures;
+		this.averageLatencyMs = averageLatencyMs;
+		this.backoffUntil = backoffUntil;
+	}
+}
@@ -0,0 +1,103 @@
+package org.briarproject.moat;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import static java.lang.Math.min;
+import static java.lang.Math.round;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Keeps track of the latency and failures of requests through each front,
+ * and orders the fronts so the most promising ones are tried first.
+ */
+@ThreadSafe
+@NotNullByDefault
+class FrontStatsTracker {
+
+	private static final double LATENCY_WEIGHT = 0.3;
+	static final long MIN_BACKOFF = SECONDS.toMillis(30);
+	static final long MAX_BACKOFF = MINUTES.toMillis(30);
+
+	private final List<DomainFront> fronts;
+
+	@GuardedBy("this")
+	private final Map<DomainFront, Stats> stats = new HashMap<>();
+
+	FrontStatsTracker(List<DomainFront> fronts) {
+		this.fronts = fronts;
+		for (DomainFront f : fronts) stats.put(f, new Stats());
+	}
+
+	synchronized void onSuccess(DomainFront front, long latencyMs) {
+		Stats s = stats.get(front);
+		if (s == null) return;
+		s.successes++;
+		s.consecutiveFailures = 0;
+		s.backoffUntil = 0;
+		if (s.averageLatencyMs == -1) s.averageLatencyMs = latencyMs;
+		else s.averageLatencyMs = round(LATENCY_WEIGHT * latencyMs
+				+ (1 - LATENCY_WEIGHT) * s.averageLatencyMs);
+	}
+
+	synchronized void onFailure(DomainFront front, long now) {
+		Stats s = stats.get(front);
+		if (s == null) return;
+		s.failures++;
+		s.consecutiveFailures++;
+		// Double the backoff for each consecutive failure after the first
+		int doublings = min(s.consecutiveFailures - 1, 16);
+		s.backoffUntil = now + min(MIN_BACKOFF << doublings, MAX_BACKOFF);
+	}
+
+	/**
+	 * Returns the fronts in the order they should be tried: fronts with
+	 * known latencies, fastest first, then fronts that haven't succeeded
+	 * yet, in the configured order, then fronts that are backed off,
+	 * soonest available first.
+	 */
+	synchronized List<DomainFront> getFrontsInOrder(long now) {
+		List<DomainFront> ordered = new ArrayList<>(fronts);
+		Collections.sort(ordered, (a, b) -> {
+			Stats sa = stats.get(a), sb = stats.get(b);
+			long backoffA = sa.backoffUntil > now ? sa.backoffUntil : 0;
+			long backoffB = sb.backoffUntil > now ? sb.backoffUntil : 0;
+			if (backoffA != backoffB) {
+				if (backoffA == 0) return -1;
+				if (backoffB == 0) return 1;
+				return Long.compare(backoffA, backoffB);
+			}
+			long latencyA = sa.averageLatencyMs == -1 ? Long.MAX_VALUE : sa.averageLatencyMs;
+			long latencyB = sb.averageLatencyMs == -1 ? Long.MAX_VALUE : sb.averageLatencyMs;
+			// The sort is stable, so unknown fronts keep the configured order
+			return Long.compare(latencyA, latencyB);
+		});
+		return ordered;
+	}
+
+	synchronized List<FrontStats> getStats(long now) {
+		List<FrontStats> snapshot = new ArrayList<>(fronts.size());
+		for (DomainFront f : fronts) {
+			Stats s = stats.get(f);
+			snapshot.add(new FrontStats(f, s.successes, s.failures, s.consecutiveFailures,
+					s.averageLatencyMs, s.backoffUntil > now ? s.backoffUntil : 0));
+		}
+		return snapshot;
+	}
+
+	@NotNullByDefault
+	private static class Stats {
+
+		private int successes = 0, failures = 0, consecutiveFailures = 0;
+		private long averageLatencyMs = -1, backoffUntil = 0;
+	}
+}
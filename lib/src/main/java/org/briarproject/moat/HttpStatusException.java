@@ -0,0 +1,25 @@
+package org.briarproject.moat;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the Moat server responds with an unsuccessful status code.
+ */
+@NotNullByDefault
+class HttpStatusException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int code;
+
+	HttpStatusException(int code) {
+		super("request error: " + code);
+		this.code = code;
+	}
+
+	int getCode() {
+		return code;
+	}
+}
@@ -0,0 +1,42 @@
+package org.briarproject.moat;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import javax.annotation.Nullable;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Creates executors for blocking IO. The library is a multi-release JAR, and
+ * on Java 21 or later this class is replaced by a version that uses virtual
+ * threads.
+ */
+@NotNullByDefault
+class IoExecutors {
+
+	/**
+	 * Creates an executor for blocking IO. Its threads are daemon threads
+	 * that exit when they're idle.
+	 */
+	static ExecutorService createExecutor(String name) {
+		return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 10, SECONDS,
+				new SynchronousQueue<>(), r -> {
+			Thread t = new Thread(r, name);
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Returns the executor that OkHttp should use for calls by default, or
+	 * null if OkHttp should create its own.
+	 */
+	@Nullable
+	static ExecutorService getDefaultCallExecutor() {
+		return null;
+	}
+}
@@ -0,0 +1,202 @@
+package org.briarproject.moat;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+import static java.lang.System.arraycopy;
+import static java.util.logging.Level.INFO;
+import static java.util.logging.Logger.getLogger;
+import static javax.net.ssl.TrustManagerFactory.getDefaultAlgorithm;
+import static org.briarproject.moat.MoatApi.validateCertificateChain;
+import static org.briarproject.moat.MoatPhase.CERTIFICATE_VALIDATION;
+
+/**
+ * A trust manager that accepts the certificates accepted by the default trust
+ * manager, plus certificates issued by the root certificate used by Let's
+ * Encrypt, which is missing from the trust stores of older Android versions.
+ * <p>
+ * Loading the default trust store and the root certificate is expensive, so
+ * a shared instance and socket factory are created once per process.
+ */
+@ThreadSafe
+@NotNullByDefault
+class IsrgTrustManager implements X509TrustManager {
+
+	private static final Logger LOG = getLogger(IsrgTrustManager.class.getName());
+
+	private static final String ISRG_RESOURCE_NAME = "isrg-root-x1.der";
+	private static final int MAX_VERIFIED_CHAINS = 16;
+
+	private static final Object LOCK = new Object();
+
+	@GuardedBy("LOCK")
+	@Nullable
+	private static IsrgTrustManager instance = null;
+	@GuardedBy("LOCK")
+	@Nullable
+	private static SSLSocketFactory socketFactory = null;
+
+	private final X509TrustManager delegate;
+	private final X509Certificate authority;
+	private final X509Certificate[] acceptedIssuers;
+	private final VerifiedChainCache verifiedChains;
+	@Nullable
+	private final MoatMetrics metrics;
+
+	private IsrgTrustManager(X509TrustManager delegate, X509Certificate authority,
+			X509Certificate[] acceptedIssuers, VerifiedChainCache verifiedChains,
+			@Nullable MoatMetrics metrics) {
+		this.delegate = delegate;
+		this.authority = authority;
+		this.acceptedIssuers = acceptedIssuers;
+		this.verifiedChains = verifiedChains;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Returns the shared instance, creating it if necessary.
+	 */
+	static IsrgTrustManager getInstance() throws IOException, GeneralSecurityException {
+		synchronized (LOCK) {
+			if (instance == null) instance = create();
+			return instance;
+		}
+	}
+
+	/**
+	 * Returns a socket factory that uses the shared instance, creating it if
+	 * necessary.
+	 */
+	static SSLSocketFactory getSocketFactory() throws IOException, GeneralSecurityException {
+		synchronized (LOCK) {
+			if (socketFactory == null) socketFactory = createSocketFactory(getInstance());
+			return socketFactory;
+		}
+	}
+
+	/**
+	 * Creates a new instance without using the shared instance.
+	 */
+	static IsrgTrustManager create() throws IOException, GeneralSecurityException {
+		// Find the default X-509 trust manager
+		TrustManagerFactory tmf = TrustManagerFactory.getInstance(getDefaultAlgorithm());
+		// Using null here initialises the TrustManagerFactory with the default trust store.
+		tmf.init((KeyStore) null);
+		X509TrustManager delegate = null;
+		for (TrustManager tm : tmf.getTrustManagers()) {
+			if (tm instanceof X509TrustManager) {
+				delegate = (X509TrustManager) tm;
+				break;
+			}
+		}
+		if (delegate == null) throw new IOException("Could not find default X-509 trust manager");
+		X509Certificate authority = loadAuthority();
+		X509Certificate[] defaultIssuers = delegate.getAcceptedIssuers();
+		X509Certificate[] allIssuers = new X509Certificate[defaultIssuers.length + 1];
+		arraycopy(defaultIssuers, 0, allIssuers, 0, defaultIssuers.length);
+		allIssuers[defaultIssuers.length] = authority;
+		return new IsrgTrustManager(delegate, authority, allIssuers,
+				new VerifiedChainCache(MAX_VERIFIED_CHAINS), null);
+	}
+
+	static SSLSocketFactory createSocketFactory(X509TrustManager trustManager)
+			throws GeneralSecurityException {
+		SSLContext sslContext = SSLContext.getInstance("SSL");
+		sslContext.init(null, new TrustManager[]{trustManager}, new SecureRandom());
+		return sslContext.getSocketFactory();
+	}
+
+	private static X509Certificate loadAuthority() throws IOException, CertificateException {
+		InputStream in = IsrgTrustManager.class.getClassLoader()
+				.getResourceAsStream(ISRG_RESOURCE_NAME);
+		if (in == null) throw new IOException("Missing resource " + ISRG_RESOURCE_NAME);
+		try {
+			CertificateFactory certFactory = CertificateFactory.getInstance("X509");
+			X509Certificate cert = (X509Certificate) certFactory.generateCertificate(in);
+			if (LOG.isLoggable(INFO)) {
+				LOG.info("Adding certificate authority, issuer: "
+						+ cert.getIssuerX500Principal().getName()
+						+ ", subject: " + cert.getSubjectX500Principal().getName());
+			}
+			return cert;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Returns a trust manager that shares this one's state and reports the
+	 * duration of certificate validation to the given metrics.
+	 */
+	IsrgTrustManager withMetrics(MoatMetrics metrics) {
+		return new IsrgTrustManager(delegate, authority, acceptedIssuers, verifiedChains,
+				metrics);
+	}
+
+	@Override
+	public void checkClientTrusted(X509Certificate[] chain, String authType)
+			throws CertificateException {
+		delegate.checkClientTrusted(chain, authType);
+	}
+
+	@Override
+	public void checkServerTrusted(X509Certificate[] chain, String authType)
+			throws CertificateException {
+		if (LOG.isLoggable(INFO)) LOG.info("Auth type: " + authType);
+		try {
+			delegate.checkServerTrusted(chain, authType);
+			LOG.info("Certificate chain was verified by default trust manager");
+		} catch (CertificateException e) {
+			if (LOG.isLoggable(INFO)) {
+				LOG.info("Certificate chain was not verified by default trust manager: " + e);
+			}
+			if (metrics == null) {
+				validate(chain);
+				return;
+			}
+			long start = System.nanoTime();
+			try {
+				validate(chain);
+			} catch (CertificateException e1) {
+				metrics.onPhaseFailed(CERTIFICATE_VALIDATION, new IOException(e1));
+				throw e1;
+			}
+			metrics.onPhaseCompleted(CERTIFICATE_VALIDATION, System.nanoTime() - start);
+		}
+	}
+
+	private void validate(X509Certificate[] chain) throws CertificateException {
+		ByteBuffer key = VerifiedChainCache.getKey(chain);
+		if (key != null && verifiedChains.isVerified(key, System.currentTimeMillis())) {
+			LOG.info("Certificate chain was verified previously");
+			return;
+		}
+		validateCertificateChain(chain, authority);
+		if (key != null) verifiedChains.add(key, chain);
+	}
+
+	@Override
+	public X509Certificate[] getAcceptedIssuers() {
+		// Copy the array so callers can't modify it
+		return acceptedIssuers.clone();
+	}
+}
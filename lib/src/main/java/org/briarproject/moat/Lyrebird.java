@@ -0,0 +1,230 @@
+package org.briarproject.moat;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+import static java.lang.Integer.parseInt;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Logger.getLogger;
+import static org.briarproject.moat.MoatPhase.LYREBIRD_START;
+import static org.briarproject.moat.MoatPhase.PORT_DISCOVERY;
+import static org.briarproject.moat.Schedulers.IO_EXECUTOR;
+import static org.briarproject.moat.Schedulers.cancelTask;
+import static org.briarproject.moat.Schedulers.scheduleIo;
+
+/**
+ * A lyrebird process and the port of its meek_lite SOCKS listener, which is
+ * reported to a {@link PortListener} once lyrebird has printed it. The
+ * process's output is read on a shared executor until the process exits.
+ */
+@NotNullByDefault
+class Lyrebird {
+
+	interface PortListener {
+
+		void onPort(Lyrebird lyrebird, int port);
+
+		void onPortFailure(Lyrebird lyrebird, IOException e);
+
+		/**
+		 * Called when the process has exited, after the port or a failure
+		 * has been reported.
+		 */
+		void onExit(Lyrebird lyrebird);
+	}
+
+	private static final Logger LOG = getLogger(Lyrebird.class.getName());
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final String PORT_PREFIX = "CMETHOD meek_lite socks5 127.0.0.1:";
+	private static final String CMETHODS_DONE = "CMETHODS DONE";
+	private static final String[] ERROR_PREFIXES =
+			{"CMETHOD-ERROR ", "ENV-ERROR", "VERSION-ERROR", "PROXY-ERROR"};
+
+	private final Process process;
+	private final long startTime;
+	// Set when the port or a failure has been reported
+	private final AtomicBoolean reported = new AtomicBoolean(false);
+
+	// The following fields are guarded by LyrebirdPool's lock
+	private int port = -1;
+	private int leases = 0;
+	private boolean standby = false;
+	private final List<LyrebirdPool.Callback> waiters = new ArrayList<>();
+
+	@Nullable
+	private volatile ScheduledFuture<?> startupTimeout = null;
+
+	Lyrebird(Process process, long startTime) {
+		this.process = process;
+		this.startTime = startTime;
+	}
+
+	/**
+	 * Starts a lyrebird process. The port or a failure is reported to the
+	 * given listener exactly once. A failure is reported if the port isn't
+	 * known within the given timeout.
+	 */
+	static Lyrebird start(File lyrebirdExecutable, File lyrebirdDir, long startupTimeoutMs,
+			PortListener listener) throws IOException {
+		ProcessBuilder pb = new ProcessBuilder(lyrebirdExecutable.getAbsolutePath());
+		Map<String, String> env = pb.environment();
+		env.put("TOR_PT_MANAGED_TRANSPORT_VER", "1");
+		env.put("TOR_PT_STATE_LOCATION", lyrebirdDir.getAbsolutePath());
+		env.put("TOR_PT_EXIT_ON_STDIN_CLOSE", "1");
+		env.put("TOR_PT_CLIENT_TRANSPORTS", "meek_lite");
+		pb.redirectErrorStream(true);
+		Process process;
+		try {
+			process = pb.start();
+		} catch (SecurityException | IOException e) {
+			throw new LyrebirdException(LYREBIRD_START, e);
+		}
+		Lyrebird lyrebird = new Lyrebird(process, System.nanoTime());
+		lyrebird.startReading(startupTimeoutMs, listener);
+		return lyrebird;
+	}
+
+	void startReading(long startupTimeoutMs, PortListener listener) {
+		startupTimeout = scheduleIo(() -> reportFailure(listener,
+				new LyrebirdException(PORT_DISCOVERY,
+						"Timed out waiting for lyrebird to start")),
+				startupTimeoutMs, MILLISECONDS);
+		IO_EXECUTOR.execute(() -> readOutput(listener));
+	}
+
+	boolean isAlive() {
+		// Process#isAlive() is not available on older Android versions
+		try {
+			process.exitValue();
+			return false;
+		} catch (IllegalThreadStateException e) {
+			return true;
+		}
+	}
+
+	void destroy() {
+		process.destroy();
+	}
+
+	/**
+	 * Returns the value of {@link System#nanoTime()} when the process was
+	 * started.
+	 */
+	long getStartTime() {
+		return startTime;
+	}
+
+	boolean isReady() {
+		return port != -1;
+	}
+
+	int getPort() {
+		return port;
+	}
+
+	void setPort(int port) {
+		this.port = port;
+	}
+
+	int getLeases() {
+		return leases;
+	}
+
+	int addLease() {
+		return ++leases;
+	}
+
+	int removeLease() {
+		return --leases;
+	}
+
+	/**
+	 * Returns true if the process was started or kept running before it was
+	 * needed, in which case it's kept running while idle.
+	 */
+	boolean isStandby() {
+		return standby;
+	}
+
+	void setStandby(boolean standby) {
+		this.standby = standby;
+	}
+
+	List<LyrebirdPool.Callback> getWaiters() {
+		return waiters;
+	}
+
+	private void readOutput(PortListener listener) {
+		try (BufferedReader reader = new BufferedReader(
+				new InputStreamReader(process.getInputStream(), UTF_8))) {
+			String line;
+			// Keep draining the output after the port is known, so lyrebird
+			// doesn't block when the pipe is full
+			while ((line = reader.readLine()) != null) {
+				if (reported.get()) {
+					if (LOG.isLoggable(FINE)) LOG.fine(line);
+				} else {
+					handleLine(listener, line);
+				}
+			}
+		} catch (IOException e) {
+			reportFailure(listener, new LyrebirdException(PORT_DISCOVERY, e));
+		}
+		reportFailure(listener, new LyrebirdException(PORT_DISCOVERY,
+				"Lyrebird exited before reporting its port"));
+		listener.onExit(this);
+	}
+
+	private void handleLine(PortListener listener, String line) {
+		if (line.startsWith(PORT_PREFIX)) {
+			try {
+				reportPort(listener, parseInt(line.substring(PORT_PREFIX.length())));
+			} catch (NumberFormatException e) {
+				reportFailure(listener, new LyrebirdException(PORT_DISCOVERY,
+						"Failed to parse port number from stdout"));
+			}
+		} else if (line.equals(CMETHODS_DONE)) {
+			reportFailure(listener,
+					new LyrebirdException(PORT_DISCOVERY, "Lyrebird did not report a port"));
+		} else {
+			for (String prefix : ERROR_PREFIXES) {
+				if (line.startsWith(prefix)) {
+					reportFailure(listener, new LyrebirdException(PORT_DISCOVERY, line));
+					return;
+				}
+			}
+		}
+	}
+
+	private void reportPort(PortListener listener, int port) {
+		if (!reported.compareAndSet(false, true)) return;
+		cancelStartupTimeout();
+		listener.onPort(this, port);
+	}
+
+	private void reportFailure(PortListener listener, IOException e) {
+		if (!reported.compareAndSet(false, true)) return;
+		cancelStartupTimeout();
+		listener.onPortFailure(this, e);
+	}
+
+	private void cancelStartupTimeout() {
+		ScheduledFuture<?> timeout = startupTimeout;
+		if (timeout != null) cancelTask(timeout);
+	}
+}
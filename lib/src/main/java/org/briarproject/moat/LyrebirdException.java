@@ -0,0 +1,35 @@
+package org.briarproject.moat;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.io.IOException;
+
+/**
+ * Thrown when lyrebird can't be started or doesn't report its port.
+ */
+@NotNullByDefault
+class LyrebirdException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final MoatPhase phase;
+
+	LyrebirdException(MoatPhase phase, String message) {
+		super(message);
+		this.phase = phase;
+	}
+
+	LyrebirdException(MoatPhase phase, Throwable cause) {
+		super(cause);
+		this.phase = phase;
+	}
+
+	/**
+	 * Returns {@link MoatPhase#LYREBIRD_START} if the process couldn't be
+	 * started, or {@link MoatPhase#PORT_DISCOVERY} if it didn't report its
+	 * port.
+	 */
+	MoatPhase getPhase() {
+		return phase;
+	}
+}
@@ -0,0 +1,123 @@
+package org.briarproject.moat;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Limits the number of lyrebird processes that can run at the same time.
+ * Each {@link MoatApi} shares one lyrebird process between its requests, so
+ * the limit applies to all instances that are given the same limiter. By
+ * default, each instance has its own limiter with no limit.
+ * <p>
+ * If the limit has been reached when a request needs to start a process,
+ * idle processes belonging to other instances are stopped, and the request
+ * waits for a process to exit. While any requests are waiting, processes are
+ * stopped as soon as they become idle. If no process exits before the
+ * startup timeout, the request fails with a {@link LyrebirdException}.
+ */
+@ThreadSafe
+@NotNullByDefault
+public class LyrebirdLimiter {
+
+	private final int maxProcesses;
+
+	@GuardedBy("this")
+	private int processes = 0;
+	@GuardedBy("this")
+	private final Deque<LyrebirdPool> queue = new ArrayDeque<>();
+	// Pools aren't always closed, so don't keep them reachable
+	@GuardedBy("this")
+	private final Set<LyrebirdPool> pools = Collections.newSetFromMap(new WeakHashMap<>());
+
+	public LyrebirdLimiter(int maxProcesses) {
+		if (maxProcesses < 1) throw new IllegalArgumentException();
+		this.maxProcesses = maxProcesses;
+	}
+
+	/**
+	 * Returns the number of processes that are running.
+	 */
+	public synchronized int getProcesses() {
+		return processes;
+	}
+
+	synchronized void register(LyrebirdPool pool) {
+		pools.add(pool);
+	}
+
+	synchronized void unregister(LyrebirdPool pool) {
+		pools.remove(pool);
+		queue.remove(pool);
+	}
+
+	/**
+	 * Returns true if any pools are waiting for a permit.
+	 */
+	synchronized boolean hasWaiters() {
+		return !queue.isEmpty();
+	}
+
+	synchronized boolean tryAcquire() {
+		if (processes == maxProcesses) return false;
+		processes++;
+		return true;
+	}
+
+	/**
+	 * Adds the given pool to the queue of pools waiting for a permit. The
+	 * pool's {@link LyrebirdPool#onPermit()} method is called when a permit
+	 * has been passed to it.
+	 */
+	synchronized void enqueue(LyrebirdPool pool) {
+		if (!queue.contains(pool)) queue.add(pool);
+	}
+
+	/**
+	 * Removes the given pool from the queue.
+	 *
+	 * @return True if the pool was removed, or false if a permit has already
+	 * been passed to it
+	 */
+	synchronized boolean dequeue(LyrebirdPool pool) {
+		return queue.remove(pool);
+	}
+
+	/**
+	 * Stops the idle processes of all pools except the given one, so their
+	 * permits can be passed to waiting pools. This must not be called while
+	 * holding a pool's lock.
+	 */
+	void evictIdle(LyrebirdPool except) {
+		List<LyrebirdPool> others;
+		synchronized (this) {
+			others = new ArrayList<>(pools);
+		}
+		for (LyrebirdPool pool : others) {
+			if (pool != except) pool.evictIdle();
+		}
+	}
+
+	/**
+	 * Releases a permit, or passes it to the first waiting pool. This must
+	 * not be called while holding a pool's lock.
+	 */
+	void release() {
+		LyrebirdPool next;
+		synchronized (this) {
+			if (processes == 0) throw new IllegalStateException();
+			next = queue.poll();
+			if (next == null) processes--;
+		}
+		if (next != null) next.onPermit();
+	}
+}
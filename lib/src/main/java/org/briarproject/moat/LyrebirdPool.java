@@ -0,0 +1,441 @@
+package org.briarproject.moat;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.logging.Logger.getLogger;
+import static org.briarproject.moat.MoatPhase.LYREBIRD_START;
+import static org.briarproject.moat.MoatPhase.PORT_DISCOVERY;
+import static org.briarproject.moat.Schedulers.IO_EXECUTOR;
+import static org.briarproject.moat.Schedulers.cancelTask;
+import static org.briarproject.moat.Schedulers.scheduleIo;
+import static org.briarproject.nullsafety.NullSafety.requireNonNull;
+
+/**
+ * Keeps a single lyrebird process running so that it can be shared by
+ * concurrent and consecutive requests. The process is restarted if it dies
+ * and destroyed after it has been idle for the given timeout. A standby
+ * process can be started before it's needed by calling {@link #prewarm()}.
+ * Processes are counted by the given {@link LyrebirdLimiter} from when they
+ * start until they exit. If the limiter has no permits, requests wait for
+ * one until the startup timeout expires.
+ */
+@ThreadSafe
+@NotNullByDefault
+class LyrebirdPool implements Closeable, Lyrebird.PortListener {
+
+	interface Callback {
+
+		/**
+		 * Called when a running lyrebird process has been leased. The
+		 * caller must pass the process to {@link #release(Lyrebird)} when
+		 * done.
+		 */
+		void onLyrebirdReady(Lyrebird lyrebird);
+
+		void onLyrebirdFailure(IOException e);
+	}
+
+	private static final Logger LOG = getLogger(LyrebirdPool.class.getName());
+
+	// A standby process that exits sooner than this after starting isn't
+	// replaced, to avoid restarting a process that keeps crashing
+	private static final long MIN_STANDBY_LIFETIME = SECONDS.toNanos(10);
+
+	private final File lyrebirdExecutable, lyrebirdDir;
+	private final long idleTimeoutMs, startupTimeoutMs;
+	private final LyrebirdLimiter limiter;
+	@Nullable
+	private final MoatMetrics metrics;
+	private final Object lock = new Object();
+
+	@GuardedBy("lock")
+	@Nullable
+	private Lyrebird current = null;
+	@GuardedBy("lock")
+	@Nullable
+	private ScheduledFuture<?> eviction = null;
+	@GuardedBy("lock")
+	private boolean closed = false;
+	// Callbacks waiting for a permit to start a process. If there are any,
+	// no process is running
+	@GuardedBy("lock")
+	private final List<Callback> permitWaiters = new ArrayList<>();
+	@GuardedBy("lock")
+	@Nullable
+	private ScheduledFuture<?> permitTimeout = null;
+	@GuardedBy("lock")
+	private int permitWaits = 0;
+
+	LyrebirdPool(File lyrebirdExecutable, File lyrebirdDir, long idleTimeoutMs,
+			long startupTimeoutMs, LyrebirdLimiter limiter, @Nullable MoatMetrics metrics) {
+		this.lyrebirdExecutable = lyrebirdExecutable;
+		this.lyrebirdDir = lyrebirdDir;
+		this.idleTimeoutMs = idleTimeoutMs;
+		this.startupTimeoutMs = startupTimeoutMs;
+		this.limiter = limiter;
+		this.metrics = metrics;
+		limiter.register(this);
+	}
+
+	/**
+	 * Leases a running lyrebird process, starting one if necessary, and
+	 * passes it to the given callback as soon as its port is known.
+	 */
+	void acquire(Callback callback) {
+		Lyrebird lyrebird;
+		// Callbacks are called without holding the lock, as they may call
+		// back into the pool or take other locks
+		IOException failure = null;
+		boolean waiting = false;
+		synchronized (lock) {
+			if (closed) {
+				lyrebird = null;
+				failure = new LyrebirdException(LYREBIRD_START, "Pool is closed");
+			} else {
+				cancelEviction();
+				if (current != null && current.isReady() && !current.isAlive()) {
+					LOG.info("Lyrebird process has died, restarting");
+					discard(current);
+					current = null;
+				}
+				if (current == null && (!permitWaiters.isEmpty() || !limiter.tryAcquire())) {
+					waitForPermit(callback);
+					lyrebird = null;
+					waiting = true;
+				} else if (current == null) {
+					try {
+						current = startProcessWithPermit();
+					} catch (IOException e) {
+						failure = e;
+					}
+				}
+				if (current == null) {
+					lyrebird = null;
+				} else {
+					current.addLease();
+					if (!current.isReady()) {
+						current.getWaiters().add(callback);
+						return;
+					}
+					lyrebird = current;
+				}
+			}
+		}
+		if (waiting) {
+			// Stop idle processes so their permits can be passed to us
+			limiter.evictIdle(this);
+		} else if (lyrebird == null) {
+			callback.onLyrebirdFailure(requireNonNull(failure));
+		} else {
+			callback.onLyrebirdReady(lyrebird);
+		}
+	}
+
+	@GuardedBy("lock")
+	private void waitForPermit(Callback callback) {
+		permitWaiters.add(callback);
+		if (permitWaiters.size() > 1) return;
+		LOG.info("Too many lyrebird processes are running, waiting");
+		limiter.enqueue(this);
+		int wait = ++permitWaits;
+		permitTimeout = scheduleIo(() -> onPermitTimeout(wait), startupTimeoutMs, MILLISECONDS);
+	}
+
+	/**
+	 * Called by the limiter when a permit has been passed to this pool.
+	 */
+	void onPermit() {
+		List<Callback> failed = new ArrayList<>();
+		IOException failure = null;
+		boolean release = false;
+		synchronized (lock) {
+			cancelPermitTimeout();
+			if (closed || permitWaiters.isEmpty() || current != null) {
+				// The waiters were cancelled or timed out
+				release = true;
+			} else {
+				try {
+					current = startProcessWithPermit();
+					for (Callback c : permitWaiters) {
+						current.addLease();
+						current.getWaiters().add(c);
+					}
+				} catch (IOException e) {
+					failure = e;
+					failed.addAll(permitWaiters);
+				}
+				permitWaiters.clear();
+			}
+		}
+		if (release) limiter.release();
+		for (Callback c : failed) c.onLyrebirdFailure(requireNonNull(failure));
+	}
+
+	private void onPermitTimeout(int wait) {
+		List<Callback> failed;
+		synchronized (lock) {
+			// If the permit has already been passed to us, onPermit() will
+			// start the process
+			if (wait != permitWaits || !limiter.dequeue(this)) return;
+			permitTimeout = null;
+			failed = new ArrayList<>(permitWaiters);
+			permitWaiters.clear();
+		}
+		LyrebirdException e = new LyrebirdException(LYREBIRD_START,
+				"Too many lyrebird processes are running");
+		if (metrics != null) metrics.onPhaseFailed(LYREBIRD_START, e);
+		for (Callback c : failed) c.onLyrebirdFailure(e);
+	}
+
+	/**
+	 * Stops the process if it's idle, so that its permit can be used by
+	 * another pool.
+	 */
+	void evictIdle() {
+		synchronized (lock) {
+			Lyrebird lyrebird = current;
+			if (lyrebird == null || lyrebird.getLeases() > 0) return;
+			LOG.info("Stopping idle lyrebird process to make room for another");
+			cancelEviction();
+			lyrebird.destroy();
+			current = null;
+		}
+	}
+
+	/**
+	 * Starts a standby process if no process is running, so that the next
+	 * request doesn't have to wait for lyrebird to start. The process is
+	 * destroyed if it's still idle when the idle timeout expires. If it
+	 * exits before then, it's replaced.
+	 */
+	void prewarm() {
+		synchronized (lock) {
+			if (closed || idleTimeoutMs <= 0 || !permitWaiters.isEmpty()) return;
+			if (current != null && current.isReady() && !current.isAlive()) {
+				discard(current);
+				current = null;
+			}
+			if (current == null) {
+				try {
+					current = startProcess();
+				} catch (IOException e) {
+					LOG.warning("Failed to start standby lyrebird process: " + e);
+					return;
+				}
+				current.setStandby(true);
+				scheduleEviction();
+			} else if (current.getLeases() == 0) {
+				// Keep the idle process for the whole timeout
+				current.setStandby(true);
+				cancelEviction();
+				scheduleEviction();
+			}
+		}
+	}
+
+	/**
+	 * Cancels a callback that is waiting for lyrebird to start. If no other
+	 * callbacks are waiting for the process, it's destroyed.
+	 *
+	 * @return True if the callback was cancelled, or false if it has already
+	 * been called
+	 */
+	boolean cancel(Callback callback) {
+		synchronized (lock) {
+			if (permitWaiters.remove(callback)) {
+				// If the permit has already been passed to us, onPermit()
+				// will release it
+				if (permitWaiters.isEmpty() && limiter.dequeue(this)) cancelPermitTimeout();
+				return true;
+			}
+			Lyrebird lyrebird = current;
+			if (lyrebird == null || !lyrebird.getWaiters().remove(callback)) return false;
+			if (lyrebird.removeLease() == 0) {
+				if (lyrebird.isStandby()) {
+					scheduleEviction();
+				} else {
+					LOG.info("Lyrebird startup was cancelled");
+					lyrebird.destroy();
+					current = null;
+				}
+			}
+			return true;
+		}
+	}
+
+	void release(Lyrebird lyrebird) {
+		synchronized (lock) {
+			if (lyrebird.removeLease() > 0) return;
+			if (lyrebird != current) {
+				// The process was replaced while leased
+				lyrebird.destroy();
+			} else if (closed || idleTimeoutMs <= 0 || limiter.hasWaiters()) {
+				// Stop the process, passing its permit to any waiting pool
+				lyrebird.destroy();
+				current = null;
+			} else {
+				scheduleEviction();
+			}
+		}
+	}
+
+	@Override
+	public void onPort(Lyrebird lyrebird, int port) {
+		if (metrics != null) {
+			metrics.onPhaseCompleted(PORT_DISCOVERY, System.nanoTime() - lyrebird.getStartTime());
+		}
+		List<Callback> waiters;
+		synchronized (lock) {
+			lyrebird.setPort(port);
+			waiters = new ArrayList<>(lyrebird.getWaiters());
+			lyrebird.getWaiters().clear();
+		}
+		for (Callback c : waiters) c.onLyrebirdReady(lyrebird);
+	}
+
+	@Override
+	public void onPortFailure(Lyrebird lyrebird, IOException e) {
+		if (metrics != null) metrics.onPhaseFailed(PORT_DISCOVERY, e);
+		List<Callback> waiters;
+		synchronized (lock) {
+			waiters = new ArrayList<>(lyrebird.getWaiters());
+			lyrebird.getWaiters().clear();
+			for (int i = 0; i < waiters.size(); i++) lyrebird.removeLease();
+			if (lyrebird == current) current = null;
+			lyrebird.destroy();
+		}
+		for (Callback c : waiters) c.onLyrebirdFailure(e);
+	}
+
+	@Override
+	public void onExit(Lyrebird lyrebird) {
+		limiter.release();
+		synchronized (lock) {
+			// Failures to start are handled by onPortFailure()
+			if (lyrebird != current || !lyrebird.isReady()) return;
+			LOG.info("Lyrebird process has exited");
+			current = null;
+			// If the process is leased, a new one will be started when needed
+			if (closed || lyrebird.getLeases() > 0 || !lyrebird.isStandby()) return;
+			cancelEviction();
+			if (System.nanoTime() - lyrebird.getStartTime() < MIN_STANDBY_LIFETIME) return;
+			LOG.info("Replacing standby lyrebird process");
+			try {
+				current = startProcess();
+			} catch (IOException e) {
+				LOG.warning("Failed to start standby lyrebird process: " + e);
+				return;
+			}
+			current.setStandby(true);
+			scheduleEviction();
+		}
+	}
+
+	@Override
+	public void close() {
+		List<Callback> waiters = new ArrayList<>();
+		synchronized (lock) {
+			closed = true;
+			cancelEviction();
+			cancelPermitTimeout();
+			limiter.unregister(this);
+			waiters.addAll(permitWaiters);
+			permitWaiters.clear();
+			if (current != null) {
+				waiters.addAll(current.getWaiters());
+				current.getWaiters().clear();
+				for (int i = 0; i < waiters.size(); i++) current.removeLease();
+				discard(current);
+			}
+			current = null;
+		}
+		for (Callback c : waiters) {
+			c.onLyrebirdFailure(new LyrebirdException(LYREBIRD_START, "Pool is closed"));
+		}
+	}
+
+	@GuardedBy("lock")
+	private Lyrebird startProcess() throws IOException {
+		if (!limiter.tryAcquire()) {
+			LyrebirdException e = new LyrebirdException(LYREBIRD_START,
+					"Too many lyrebird processes are running");
+			if (metrics != null) metrics.onPhaseFailed(LYREBIRD_START, e);
+			throw e;
+		}
+		return startProcessWithPermit();
+	}
+
+	@GuardedBy("lock")
+	private Lyrebird startProcessWithPermit() throws IOException {
+		long start = metrics == null ? 0 : System.nanoTime();
+		Lyrebird lyrebird;
+		try {
+			lyrebird = Lyrebird.start(lyrebirdExecutable, lyrebirdDir, startupTimeoutMs, this);
+		} catch (IOException e) {
+			// The permit is released by onExit() if the process started. The
+			// limiter may pass the permit to another pool, which must not
+			// happen while we hold our lock
+			IO_EXECUTOR.execute(limiter::release);
+			if (metrics != null) metrics.onPhaseFailed(LYREBIRD_START, e);
+			throw e;
+		}
+		if (metrics != null) {
+			metrics.onPhaseCompleted(LYREBIRD_START, lyrebird.getStartTime() - start);
+		}
+		return lyrebird;
+	}
+
+	@GuardedBy("lock")
+	private void scheduleEviction() {
+		Lyrebird lyrebird = current;
+		if (lyrebird == null) return;
+		eviction = scheduleIo(() -> evict(lyrebird), idleTimeoutMs, MILLISECONDS);
+	}
+
+	private void evict(Lyrebird lyrebird) {
+		synchronized (lock) {
+			// The process may have been leased again before we got the lock
+			if (lyrebird != current || lyrebird.getLeases() > 0) return;
+			LOG.info("Stopping idle lyrebird process");
+			lyrebird.destroy();
+			current = null;
+			eviction = null;
+		}
+	}
+
+	@GuardedBy("lock")
+	private void discard(Lyrebird lyrebird) {
+		// If the process is leased, it will be destroyed when it's released
+		if (lyrebird.getLeases() == 0) lyrebird.destroy();
+	}
+
+	@GuardedBy("lock")
+	private void cancelPermitTimeout() {
+		if (permitTimeout != null) {
+			cancelTask(permitTimeout);
+			permitTimeout = null;
+		}
+	}
+
+	@GuardedBy("lock")
+	private void cancelEviction() {
+		if (eviction != null) {
+			cancelTask(eviction);
+			eviction = null;
+		}
+	}
+}
@@ -1,43 +1,48 @@
 package org.briarproject.moat;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.json.JsonMapper;
-import com.fasterxml.jackson.databind.node.ArrayNode;
-
 import org.briarproject.nullsafety.NotNullByDefault;
 import org.briarproject.socks.SocksSocketFactory;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
-import java.security.KeyManagementException;
-import java.security.KeyStore;
-import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
-import java.security.SecureRandom;
 import java.security.SignatureException;
 import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Scanner;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
 import javax.net.SocketFactory;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLSocketFactory;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.TrustManagerFactory;
 import javax.net.ssl.X509TrustManager;
 
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
@@ -45,50 +50,143 @@ import okhttp3.RequestBody;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
 
-import static com.fasterxml.jackson.databind.MapperFeature.BLOCK_UNSAFE_POLYMORPHIC_BASE_TYPES;
-import static java.lang.Integer.parseInt;
-import static java.lang.System.arraycopy;
-import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static java.util.Collections.unmodifiableList;
+import static java.util.Locale.ROOT;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.logging.Level.INFO;
 import static java.util.logging.Logger.getLogger;
-import static javax.net.ssl.TrustManagerFactory.getDefaultAlgorithm;
+import static org.briarproject.moat.MoatPhase.PARSE;
+import static org.briarproject.moat.Schedulers.IO_EXECUTOR;
+import static org.briarproject.moat.Schedulers.cancelTask;
+import static org.briarproject.moat.Schedulers.scheduleIo;
 import static org.briarproject.nullsafety.NullSafety.requireNonNull;
 
+/**
+ * Fetches bridges from the Moat API through a lyrebird process, which is
+ * shared by all requests made through the same instance.
+ * <p>
+ * Instances are safe for concurrent use. Concurrent requests for the same
+ * country share a single upstream request and its result, so a burst of
+ * requests doesn't cause a burst of traffic through lyrebird.
+ * <p>
+ * Instances created with a {@link Builder} keep lyrebird running for a while
+ * after each request (see {@link Builder#idleTimeout(long, TimeUnit)}), so
+ * {@link #close()} must be called when the instance is no longer needed.
+ * Instances created with the constructors stop lyrebird as soon as no
+ * requests are using it.
+ */
+@ThreadSafe
 @NotNullByDefault
-public class MoatApi {
+public class MoatApi implements Closeable {
 
 	private static final Logger LOG = getLogger(MoatApi.class.getName());
 
 	private static final String MOAT_URL = "https://bridges.torproject.org/moat";
 	private static final String MOAT_CIRCUMVENTION_SETTINGS = "circumvention/settings";
+	private static final String MOAT_CIRCUMVENTION_MAP = "circumvention/map";
+	private static final String MOAT_CIRCUMVENTION_BUILTIN = "circumvention/builtin";
+	private static final String MOAT_CIRCUMVENTION_COUNTRIES = "circumvention/countries";
 	private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
-	private static final String PORT_PREFIX = "CMETHOD meek_lite socks5 127.0.0.1:";
-	private static final String ISRG_RESOURCE_NAME = "isrg-root-x1.der";
 
 	private static final int CONNECT_TO_PROXY_TIMEOUT = (int) SECONDS.toMillis(5);
-	private static final int EXTRA_CONNECT_TIMEOUT = (int) SECONDS.toMillis(120);
-	private static final int EXTRA_SOCKET_TIMEOUT = (int) SECONDS.toMillis(30);
+	private static final long DEFAULT_CONNECT_TIMEOUT = SECONDS.toMillis(120);
+	private static final long DEFAULT_READ_TIMEOUT = SECONDS.toMillis(30);
 	private static final String SOCKS_PASSWORD = "\u0000";
+	private static final long LYREBIRD_IDLE_TIMEOUT = MINUTES.toMillis(1);
+	private static final long DEFAULT_STARTUP_TIMEOUT = SECONDS.toMillis(30);
+	private static final int MAX_IDLE_CONNECTIONS = 2;
+	private static final String DISK_CACHE_DIR_NAME = "moat-cache";
+	private static final long DEFAULT_RACE_DELAY = SECONDS.toMillis(5);
+	private static final int DEFAULT_MAX_SNAPSHOTS = 16;
 
-	private final File lyrebirdExecutable, lyrebirdDir;
-	private final String url, front;
+	private final LyrebirdPool lyrebirdPool;
+	private final List<DomainFront> fronts;
+	private final FrontStatsTracker frontStats;
+	private final long raceDelayMs, callTimeoutMs;
+	private final RetryPolicy retryPolicy;
+	private final AttemptBudget attemptBudget;
+	private final int connectTimeoutMs, readTimeoutMs;
 	private final boolean addIsrgRootCertificate;
-	private final JsonMapper mapper = JsonMapper.builder()
-			.enable(BLOCK_UNSAFE_POLYMORPHIC_BASE_TYPES)
-			.build();
+	@Nullable
+	private final BridgesCache cache;
+	@Nullable
+	private final DiskCache diskCache;
+	private final SnapshotCache snapshots;
+	@Nullable
+	private final MoatMetrics metrics;
+	@Nullable
+	private final X509TrustManager trustManager;
+	@Nullable
+	private final ExecutorService callExecutor;
+	private final Object clientLock = new Object();
+
+	@GuardedBy("clientLock")
+	@Nullable
+	private OkHttpClient baseClient = null;
+	@GuardedBy("clientLock")
+	private final Map<DomainFront, OkHttpClient> clients = new HashMap<>();
+	@GuardedBy("clientLock")
+	@Nullable
+	private Lyrebird clientLyrebird = null;
+
+	// Requests for each country that are in flight
+	@GuardedBy("fetches")
+	private final Map<String, Fetch> fetches = new HashMap<>();
 
 	public MoatApi(File lyrebirdExecutable, File lyrebirdDir, String url, String front) {
-		this(lyrebirdExecutable, lyrebirdDir, url, front, false);
+		this(new Builder(lyrebirdExecutable, lyrebirdDir, url, front)
+				.idleTimeout(0, MILLISECONDS));
 	}
 
 	public MoatApi(File lyrebirdExecutable, File lyrebirdDir, String url, String front,
 			boolean addIsrgRootCertificate) {
-		if (!lyrebirdDir.isDirectory()) throw new IllegalArgumentException();
-		this.lyrebirdExecutable = lyrebirdExecutable;
-		this.lyrebirdDir = lyrebirdDir;
-		this.url = url;
-		this.front = front;
-		this.addIsrgRootCertificate = addIsrgRootCertificate;
+		this(new Builder(lyrebirdExecutable, lyrebirdDir, url, front)
+				.idleTimeout(0, MILLISECONDS)
+				.addIsrgRootCertificate(addIsrgRootCertificate));
+	}
+
+	private MoatApi(Builder builder) {
+		if (!builder.lyrebirdDir.isDirectory()) throw new IllegalArgumentException();
+		metrics = builder.metrics;
+		trustManager = builder.trustManager;
+		snapshots = new SnapshotCache(builder.maxSnapshots);
+		callExecutor = builder.callExecutor != null ? builder.callExecutor
+				: IoExecutors.getDefaultCallExecutor();
+		lyrebirdPool = new LyrebirdPool(builder.lyrebirdExecutable, builder.lyrebirdDir,
+				builder.idleTimeoutMs, builder.startupTimeoutMs,
+				builder.limiter == null ? new LyrebirdLimiter(Integer.MAX_VALUE) : builder.limiter,
+				metrics);
+		if (builder.fronts.isEmpty()) throw new IllegalArgumentException();
+		fronts = unmodifiableList(new ArrayList<>(builder.fronts));
+		frontStats = new FrontStatsTracker(fronts);
+		raceDelayMs = builder.raceDelayMs;
+		callTimeoutMs = builder.callTimeoutMs;
+		retryPolicy = builder.retryPolicy;
+		attemptBudget = new AttemptBudget(retryPolicy.budgetRatio);
+		connectTimeoutMs = toIntMillis(builder.connectTimeoutMs);
+		readTimeoutMs = toIntMillis(builder.readTimeoutMs);
+		addIsrgRootCertificate = builder.addIsrgRootCertificate;
+		if (builder.cacheMaxEntries > 0) {
+			cache = new BridgesCache(builder.cacheMaxEntries, builder.cacheTtlMs,
+					builder.cacheMaxStaleMs);
+		} else {
+			cache = null;
+		}
+		if (builder.diskCacheMaxAgeMs > 0) {
+			if (cache == null) throw new IllegalStateException("Disk cache requires cache");
+			diskCache = new DiskCache(new File(builder.lyrebirdDir, DISK_CACHE_DIR_NAME),
+					builder.diskCacheMaxAgeMs);
+		} else {
+			diskCache = null;
+		}
+		if (builder.prewarm) lyrebirdPool.prewarm();
+	}
+
+	private static int toIntMillis(long ms) {
+		return (int) Math.min(ms, Integer.MAX_VALUE);
 	}
 
 	public List<Bridges> get() throws IOException {
@@ -96,195 +194,385 @@ public class MoatApi {
 	}
 
 	public List<Bridges> getWithCountry(String country) throws IOException {
-		Process lyrebirdProcess = startLyrebird();
-		try {
-			int port = getPort(lyrebirdProcess);
-			String socksUsername = "url=" + url + ";front=" + front;
-			SocketFactory socketFactory = new SocksSocketFactory(
-					new InetSocketAddress("localhost", port),
-					CONNECT_TO_PROXY_TIMEOUT,
-					EXTRA_CONNECT_TIMEOUT,
-					EXTRA_SOCKET_TIMEOUT,
-					socksUsername,
-					SOCKS_PASSWORD
-			);
-			OkHttpClient.Builder clientBuilder = new OkHttpClient.Builder()
-					.socketFactory(socketFactory)
-					.dns(new NoDns());
-			if (addIsrgRootCertificate) {
-				X509TrustManager trustManager = createTrustManager();
-				clientBuilder.sslSocketFactory(createSslSocketFactory(trustManager), trustManager);
-			}
-			OkHttpClient client = clientBuilder.build();
-
-			String requestJson = country.isEmpty() ? "" : "{\"country\": \"" + country + "\"}";
-			RequestBody requestBody = RequestBody.create(JSON, requestJson);
-			Request request = new Request.Builder()
-					.url(MOAT_URL + "/" + MOAT_CIRCUMVENTION_SETTINGS)
-					.post(requestBody)
-					.build();
-			Response response = client.newCall(request).execute();
-			ResponseBody responseBody = response.body();
-			if (!response.isSuccessful() || responseBody == null)
-				throw new IOException("request error");
-			String responseJson = responseBody.string();
-			return parseResponse(responseJson);
-		} catch (CertificateException | NoSuchAlgorithmException | KeyStoreException |
-		         KeyManagementException e) {
-			throw new IOException(e);
-		} finally {
-			lyrebirdProcess.destroy();
-		}
-	}
-
-	private List<Bridges> parseResponse(String responseJson) throws IOException {
-		JsonNode node = mapper.readTree(responseJson);
-		JsonNode settings = node.get("settings");
-		if (settings == null) throw new IOException("no settings in response");
-		if (!settings.isArray()) throw new IOException("settings not an array");
-		List<Bridges> bridges = new ArrayList<>();
-		for (JsonNode n : settings) {
-			bridges.add(parseBridges(n));
-		}
-		return bridges;
-	}
-
-	private Bridges parseBridges(JsonNode node) throws IOException {
-		JsonNode bridgesNode = node.get("bridges");
-		if (bridgesNode == null) throw new IOException("no bridges node");
-		String type = bridgesNode.get("type").asText();
-		String source = bridgesNode.get("source").asText();
-		JsonNode bridgeStrings = bridgesNode.get("bridge_strings");
-		List<String> bridges;
-		if (bridgeStrings instanceof ArrayNode) {
-			bridges = new ArrayList<>();
-			for (JsonNode b : bridgeStrings) {
-				bridges.add(b.asText());
+		BlockingCallback<List<Bridges>> callback = new BlockingCallback<>();
+		return callback.await(getAsync(country, callback));
+	}
+
+	/**
+	 * Returns the settings for every country that has settings, keyed by
+	 * country code, using a single request to the circumvention/map
+	 * endpoint.
+	 */
+	public Map<String, List<Bridges>> getMap() throws IOException {
+		return call(createRequest(MOAT_CIRCUMVENTION_MAP, ""), ResponseParser::parseMap);
+	}
+
+	/**
+	 * Returns the built-in bridges for each transport type from the
+	 * circumvention/builtin endpoint. The source of each entry is "builtin".
+	 */
+	public List<Bridges> getBuiltin() throws IOException {
+		return call(createRequest(MOAT_CIRCUMVENTION_BUILTIN, ""), ResponseParser::parseBuiltin);
+	}
+
+	/**
+	 * Returns the codes of the countries that have settings, from the
+	 * circumvention/countries endpoint.
+	 */
+	public List<String> getCountries() throws IOException {
+		return call(createRequest(MOAT_CIRCUMVENTION_COUNTRIES, ""),
+				ResponseParser::parseCountries);
+	}
+
+	/**
+	 * Downloads the settings for every country with a single request to the
+	 * circumvention/map endpoint, and stores them in the cache as if each
+	 * country had been requested separately. This requires caching to be
+	 * enabled, and the cache should be large enough to hold every country.
+	 *
+	 * @return The settings for each country, keyed by country code
+	 */
+	public Map<String, List<Bridges>> prefetchAll() throws IOException {
+		if (cache == null) throw new IllegalStateException("Prefetching requires cache");
+		Map<String, List<Bridges>> map = getMap();
+		long now = System.currentTimeMillis();
+		for (Map.Entry<String, List<Bridges>> e : map.entrySet()) {
+			String country = e.getKey().trim().toLowerCase(ROOT);
+			cache.put(country, e.getValue(), now);
+			if (diskCache != null) diskCache.store(country, e.getValue(), now);
+		}
+		if (LOG.isLoggable(INFO)) LOG.info("Prefetched settings for " + map.size() + " countries");
+		return map;
+	}
+
+	private <T> T call(Request request, BodyParser<T> parser) throws IOException {
+		BlockingCallback<T> callback = new BlockingCallback<>();
+		List<DomainFront> ordered = frontStats.getFrontsInOrder(System.currentTimeMillis());
+		RaceCall<T> call = new RaceCall<>(request, ordered, parser, callback);
+		call.start();
+		return callback.await(call);
+	}
+
+	/**
+	 * Asynchronous version of {@link #getWithCountry(String)}. This method
+	 * returns immediately and the result is passed to the given callback.
+	 * No thread is blocked while lyrebird starts or the request is in flight.
+	 * <p>
+	 * Concurrent requests for the same country share a single upstream
+	 * request. The upstream request is cancelled if all the requests sharing
+	 * it are cancelled. If caching is enabled, a fresh cached result is passed
+	 * to the callback before this method returns. A stale cached result is
+	 * also passed to the callback immediately, and refreshed in the
+	 * background.
+	 * <p>
+	 * If a call timeout has been set, the upstream request fails with an
+	 * {@link InterruptedIOException} if it doesn't complete in time.
+	 */
+	public MoatCall getAsync(String country, MoatCallback callback) {
+		return getAsync(country, new ResultCallback<List<Bridges>>() {
+			@Override
+			public void onResult(List<Bridges> bridges) {
+				callback.onResponse(bridges);
+			}
+
+			@Override
+			public void onFailure(IOException e) {
+				callback.onFailure(e);
+			}
+		});
+	}
+
+	MoatCall getAsync(String country, ResultCallback<List<Bridges>> callback) {
+		country = country.trim().toLowerCase(ROOT);
+		if (cache != null) {
+			long now = System.currentTimeMillis();
+			BridgesCache.Entry entry = cache.get(country, now);
+			if (entry == null && diskCache != null) {
+				DiskLoad load = new DiskLoad(country, callback);
+				IO_EXECUTOR.execute(load::load);
+				return load;
+			}
+			if (entry != null) {
+				if (!cache.isFresh(entry, now)) refresh(country);
+				callback.onResult(entry.bridges);
+				return new CompletedCall();
 			}
-		} else {
-			bridges = emptyList();
 		}
-		return new Bridges(type, source, bridges);
+		return join(country, callback);
 	}
 
-	private Process startLyrebird() throws IOException {
-		ProcessBuilder pb = new ProcessBuilder(lyrebirdExecutable.getAbsolutePath());
-		Map<String, String> env = pb.environment();
-		env.put("TOR_PT_MANAGED_TRANSPORT_VER", "1");
-		env.put("TOR_PT_STATE_LOCATION", lyrebirdDir.getAbsolutePath());
-		env.put("TOR_PT_EXIT_ON_STDIN_CLOSE", "1");
-		env.put("TOR_PT_CLIENT_TRANSPORTS", "meek_lite");
-		pb.redirectErrorStream(true);
-		try {
-			return pb.start();
-		} catch (SecurityException e) {
-			throw new IOException(e);
+	/**
+	 * Makes an upstream request for the given country's settings without
+	 * checking the cache, or joins a request that's already in flight. The
+	 * result is cached if caching is enabled.
+	 */
+	MoatCall getFresh(String country, ResultCallback<List<Bridges>> callback) {
+		return join(country.trim().toLowerCase(ROOT), callback);
+	}
+
+	private MoatCall join(String country, ResultCallback<List<Bridges>> callback) {
+		Waiter waiter = new Waiter(callback);
+		Fetch fetch;
+		boolean start = false;
+		synchronized (fetches) {
+			fetch = fetches.get(country);
+			if (fetch == null) {
+				fetch = new Fetch(country);
+				fetches.put(country, fetch);
+				start = true;
+			}
+			fetch.waiters.add(waiter);
+			waiter.fetch = fetch;
 		}
+		if (start) fetch.start();
+		return waiter;
 	}
 
-	private int getPort(Process process) throws IOException {
-		BlockingQueue<Integer> queue = new ArrayBlockingQueue<>(1);
-		Thread t = new Thread(() -> getPort(process, queue));
-		t.setDaemon(false);
-		t.start();
-		try {
-			int port = queue.take();
-			if (port == -1) throw new IOException("Failed to parse port number from stdout");
-			return port;
-		} catch (InterruptedException e) {
-			throw new IOException(e);
+	private void refresh(String country) {
+		Fetch fetch;
+		synchronized (fetches) {
+			if (fetches.containsKey(country)) return;
+			fetch = new Fetch(country);
+			fetch.background = true;
+			fetches.put(country, fetch);
 		}
+		LOG.info("Refreshing stale cache entry");
+		fetch.start();
+	}
+
+	private MoatCall fetch(String country, ResultCallback<List<Bridges>> callback) {
+		String json = country.isEmpty() ? "" : "{\"country\": \"" + country + "\"}";
+		Request request = createRequest(MOAT_CIRCUMVENTION_SETTINGS, json);
+		List<DomainFront> ordered = frontStats.getFrontsInOrder(System.currentTimeMillis());
+		RaceCall<List<Bridges>> call =
+				new RaceCall<>(request, ordered, ResponseParser::parseResponse, callback);
+		call.start();
+		return call;
+	}
+
+	/**
+	 * Starts lyrebird in the background if it isn't already running, so the
+	 * next request doesn't have to wait for it to start. The process is
+	 * stopped if no request is made before the idle timeout expires. This
+	 * has no effect if the idle timeout is zero.
+	 */
+	public void prewarm() {
+		lyrebirdPool.prewarm();
+	}
+
+	/**
+	 * Returns a token that identifies the content of the given result. The
+	 * result is remembered, so it can later be compared with a newer result
+	 * by passing the token to {@link #diff(String, List)}.
+	 */
+	public String getVersion(List<Bridges> bridges) {
+		return snapshots.add(bridges);
+	}
+
+	/**
+	 * Returns the bridge lines that were added and removed between the
+	 * given results. Unlike {@link #diff(String, List)}, this doesn't
+	 * remember the current result.
+	 */
+	public BridgesDiff diff(List<Bridges> previous, List<Bridges> current) {
+		return BridgesDiff.compute(previous, current, SnapshotCache.getVersion(current));
+	}
+
+	/**
+	 * Returns the bridge lines that were added and removed since the result
+	 * with the given version token, or null if that result is no longer
+	 * remembered. Only the most recently used results are remembered, up to
+	 * the number given by {@link Builder#maxSnapshots(int)}, so the caller
+	 * should be prepared to send the whole result instead.
+	 * <p>
+	 * The current result is remembered, as if {@link #getVersion(List)} was
+	 * called, so the version token of the returned diff can be passed to
+	 * later calls.
+	 */
+	@Nullable
+	public BridgesDiff diff(String previousVersion, List<Bridges> current) {
+		List<Bridges> previous = snapshots.get(previousVersion);
+		if (previous == null) return null;
+		return BridgesDiff.compute(previous, current, snapshots.add(current));
+	}
+
+	/**
+	 * Returns the success rate and latency of requests through each front,
+	 * in the order the fronts were given.
+	 */
+	public List<FrontStats> getFrontStats() {
+		return frontStats.getStats(System.currentTimeMillis());
 	}
 
-	private void getPort(Process process, BlockingQueue<Integer> queue) {
-		boolean found = false;
-		try (Scanner s = new Scanner(process.getInputStream())) {
-			while (s.hasNextLine()) {
-				String line = s.nextLine();
-				if (!found && line.startsWith(PORT_PREFIX)) {
-					found = true;
-					try {
-						queue.add(parseInt(line.substring(PORT_PREFIX.length())));
-					} catch (NumberFormatException e) {
-						queue.add(-1);
+	/**
+	 * Fetches the settings for each of the given countries, running up to the
+	 * given number of requests in parallel through the same lyrebird process.
+	 * A country is missing from the returned map if its request failed.
+	 *
+	 * @throws IOException If the requests for all countries failed
+	 */
+	public Map<String, List<Bridges>> getForCountries(Collection<String> countries,
+			int maxParallelRequests) throws IOException {
+		if (maxParallelRequests < 1) throw new IllegalArgumentException();
+		Set<String> unique = new LinkedHashSet<>(countries);
+		Map<String, List<Bridges>> responses = new ConcurrentHashMap<>();
+		Map<String, IOException> failures = new ConcurrentHashMap<>();
+		Semaphore permits = new Semaphore(maxParallelRequests);
+		CountDownLatch latch = new CountDownLatch(unique.size());
+		List<MoatCall> calls = new ArrayList<>(unique.size());
+		try {
+			for (String country : unique) {
+				permits.acquire();
+				calls.add(getAsync(country, new MoatCallback() {
+					@Override
+					public void onResponse(List<Bridges> bridges) {
+						responses.put(country, bridges);
+						permits.release();
+						latch.countDown();
+					}
+
+					@Override
+					public void onFailure(IOException e) {
+						LOG.warning("Request for country '" + country + "' failed: " + e);
+						failures.put(country, e);
+						permits.release();
+						latch.countDown();
 					}
-				}
+				}));
 			}
-		}
-		if (!found) queue.add(-1);
-		// Wait for the process to exit
-		try {
-			process.waitFor();
+			latch.await();
 		} catch (InterruptedException e) {
+			for (MoatCall call : calls) call.cancel();
 			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		if (responses.isEmpty() && !failures.isEmpty()) {
+			throw failures.values().iterator().next();
 		}
+		// Return the results in the order the countries were given
+		Map<String, List<Bridges>> results = new LinkedHashMap<>();
+		for (String country : unique) {
+			List<Bridges> bridges = responses.get(country);
+			if (bridges != null) results.put(country, bridges);
+		}
+		return results;
 	}
 
-	private SSLSocketFactory createSslSocketFactory(X509TrustManager trustManager)
-			throws NoSuchAlgorithmException, KeyManagementException {
-		SSLContext sslContext = SSLContext.getInstance("SSL");
-		sslContext.init(null, new TrustManager[]{trustManager}, new SecureRandom());
-		return sslContext.getSocketFactory();
+	private Request createRequest(String endpoint, String requestJson) {
+		RequestBody requestBody = RequestBody.create(JSON, requestJson);
+		return new Request.Builder()
+				.url(MOAT_URL + "/" + endpoint)
+				.post(requestBody)
+				.build();
 	}
 
-	@SuppressWarnings("CustomX509TrustManager")
-	private X509TrustManager createTrustManager() throws IOException, CertificateException,
-			NoSuchAlgorithmException, KeyStoreException {
-		// Find the default X-509 trust manager
-		TrustManagerFactory tmf = TrustManagerFactory.getInstance(getDefaultAlgorithm());
-		// Using null here initialises the TrustManagerFactory with the default trust store.
-		tmf.init((KeyStore) null);
-		X509TrustManager x509 = null;
-		for (TrustManager tm : tmf.getTrustManagers()) {
-			if (tm instanceof X509TrustManager) {
-				x509 = (X509TrustManager) tm;
-				break;
-			}
+	private <T> T parseResponse(Response response, BodyParser<T> parser) throws IOException {
+		ResponseBody responseBody = response.body();
+		if (!response.isSuccessful()) throw new HttpStatusException(response.code());
+		if (responseBody == null) throw new IOException("request error");
+		if (metrics == null) return parser.parse(responseBody.byteStream());
+		long start = System.nanoTime();
+		try {
+			T result = parser.parse(responseBody.byteStream());
+			metrics.onPhaseCompleted(PARSE, System.nanoTime() - start);
+			return result;
+		} catch (IOException e) {
+			metrics.onPhaseFailed(PARSE, e);
+			throw e;
 		}
-		if (x509 == null) throw new IOException("Could not find default X-509 trust manager");
-		final X509TrustManager delegate = x509;
+	}
 
-		// Return a trust manager that includes the root certificate used by Let's Encrypt
-		X509Certificate authority = createX509Certificate();
-		return new X509TrustManager() {
-			@Override
-			public void checkClientTrusted(X509Certificate[] chain, String authType)
-					throws CertificateException {
-				delegate.checkClientTrusted(chain, authType);
+	/**
+	 * Returns a client that tunnels through the given lyrebird process to the
+	 * given front. The client is reused by later requests through the same
+	 * process and front, so they can reuse its pooled connection instead of
+	 * connecting through meek and doing a TLS handshake again.
+	 */
+	private OkHttpClient getClient(Lyrebird lyrebird, DomainFront front) throws IOException {
+		synchronized (clientLock) {
+			if (lyrebird != clientLyrebird) {
+				// Connections through the old process can't be reused
+				evictClients();
+				clientLyrebird = lyrebird;
 			}
-
-			@Override
-			public void checkServerTrusted(X509Certificate[] chain, String authType)
-					throws CertificateException {
-				LOG.info("Auth type: " + authType);
-				try {
-					delegate.checkServerTrusted(chain, authType);
-					LOG.info("Certificate chain was verified by default trust manager");
-				} catch (CertificateException e) {
-					LOG.info("Certificate chain was not verified by default trust manager: " + e);
-					validateCertificateChain(chain, authority);
-				}
+			OkHttpClient client = clients.get(front);
+			if (client == null) {
+				if (baseClient == null) baseClient = createBaseClient();
+				client = createClient(baseClient, lyrebird.getPort(), front);
+				clients.put(front, client);
 			}
+			return client;
+		}
+	}
 
-			@Override
-			public X509Certificate[] getAcceptedIssuers() {
-				X509Certificate[] defaultIssuers = delegate.getAcceptedIssuers();
-				X509Certificate[] allIssuers = new X509Certificate[defaultIssuers.length + 1];
-				arraycopy(defaultIssuers, 0, allIssuers, 0, defaultIssuers.length);
-				allIssuers[defaultIssuers.length] = authority;
-				return allIssuers;
+	OkHttpClient createClient(OkHttpClient baseClient, int socksPort, DomainFront front) {
+		// Lyrebird takes the meek URL and front from the SOCKS username
+		SocketFactory socketFactory = new SocksSocketFactory(
+				new InetSocketAddress("localhost", socksPort),
+				CONNECT_TO_PROXY_TIMEOUT,
+				connectTimeoutMs,
+				readTimeoutMs,
+				"url=" + front.url + ";front=" + front.front,
+				SOCKS_PASSWORD
+		);
+		// Clients derived from the base client share its TLS session cache.
+		// Each client has its own connection pool, as OkHttp doesn't
+		// distinguish between connections through different fronts
+		return baseClient.newBuilder()
+				.socketFactory(socketFactory)
+				.connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS,
+						LYREBIRD_IDLE_TIMEOUT, MILLISECONDS))
+				.build();
+	}
+
+	@GuardedBy("clientLock")
+	private void evictClients() {
+		for (OkHttpClient c : clients.values()) c.connectionPool().evictAll();
+		clients.clear();
+	}
+
+	OkHttpClient createBaseClient() throws IOException {
+		// Allow as many parallel requests to the Moat host as to all hosts
+		Dispatcher dispatcher = callExecutor == null ? new Dispatcher()
+				: new Dispatcher(callExecutor);
+		dispatcher.setMaxRequestsPerHost(dispatcher.getMaxRequests());
+		OkHttpClient.Builder clientBuilder = new OkHttpClient.Builder()
+				.dispatcher(dispatcher)
+				.dns(new NoDns());
+		if (metrics != null) {
+			clientBuilder.eventListenerFactory(MoatEventListener.factory(metrics));
+		}
+		try {
+			if (trustManager != null) {
+				clientBuilder.sslSocketFactory(IsrgTrustManager.createSocketFactory(trustManager),
+						trustManager);
+			} else if (addIsrgRootCertificate && metrics == null) {
+				clientBuilder.sslSocketFactory(IsrgTrustManager.getSocketFactory(),
+						IsrgTrustManager.getInstance());
+			} else if (addIsrgRootCertificate) {
+				// Share the trust store but report validation to the metrics
+				X509TrustManager tm = IsrgTrustManager.getInstance().withMetrics(metrics);
+				clientBuilder.sslSocketFactory(IsrgTrustManager.createSocketFactory(tm), tm);
 			}
-		};
+		} catch (GeneralSecurityException e) {
+			throw new ClientSetupException(e);
+		}
+		return clientBuilder.build();
 	}
 
-	private X509Certificate createX509Certificate() throws CertificateException {
-		InputStream in = requireNonNull(
-				getClass().getClassLoader().getResourceAsStream(ISRG_RESOURCE_NAME));
-		CertificateFactory certFactory = CertificateFactory.getInstance("X509");
-		X509Certificate cert = (X509Certificate) certFactory.generateCertificate(in);
-		LOG.info("Adding certificate authority, issuer: " + cert.getIssuerX500Principal().getName()
-				+ ", subject: " + cert.getSubjectX500Principal().getName());
-		return cert;
+	/**
+	 * Stops the lyrebird process, if it's running. Unless the idle timeout
+	 * is zero, the process is kept running for a short time after each
+	 * request so that it can be reused by subsequent requests, so this must
+	 * be called when the instance is no longer needed.
+	 */
+	@Override
+	public void close() {
+		lyrebirdPool.close();
+		synchronized (clientLock) {
+			evictClients();
+			clientLyrebird = null;
+		}
 	}
 
 	static void validateCertificateChain(X509Certificate[] chain, X509Certificate authority)
@@ -295,7 +583,9 @@ public class MoatApi {
 		X509Certificate prev = authority;
 		for (int i = chain.length - 1; i >= 0; i--) {
 			X509Certificate curr = chain[i];
-			LOG.info("Checking subject: " + curr.getSubjectX500Principal().getName());
+			if (LOG.isLoggable(INFO)) {
+				LOG.info("Checking subject: " + curr.getSubjectX500Principal().getName());
+			}
 			// Check that the certificate is within its validity period
 			curr.checkValidity();
 			// Check that the issuer matches the subject ID and name of the previous certificate
@@ -323,14 +613,16 @@ public class MoatApi {
 			int constraints = curr.getBasicConstraints();
 			int caPathLength = i - 1;
 			if (constraints == -1) {
-				LOG.info("Non-CA certificate");
+				if (LOG.isLoggable(INFO)) LOG.info("Non-CA certificate");
 				if (i != 0) {
 					throw new CertificateException("Non-CA certificate found at invalid position");
 				}
 			} else if (i == 0) {
 				throw new CertificateException("CA certificate found at invalid position");
 			} else {
-				LOG.info("CA certificate with maximum CA path length: " + constraints);
+				if (LOG.isLoggable(INFO)) {
+					LOG.info("CA certificate with maximum CA path length: " + constraints);
+				}
 				if (constraints < caPathLength) {
 					throw new CertificateException("CA certificate has maximum CA path length: "
 							+ constraints + ", needed: " + caPathLength);
@@ -347,6 +639,727 @@ public class MoatApi {
 			// All good, move on to the next certificate in the chain
 			prev = curr;
 		}
-		LOG.info("Certificate chain accepted");
+		if (LOG.isLoggable(INFO)) LOG.info("Certificate chain accepted");
+	}
+
+	/**
+	 * Parses the body of a response from a Moat endpoint.
+	 */
+	private interface BodyParser<T> {
+
+		T parse(InputStream in) throws IOException;
+	}
+
+	private class AsyncCall<T> implements MoatCall, LyrebirdPool.Callback, Callback {
+
+		private final Request request;
+		private final DomainFront front;
+		private final BodyParser<T> parser;
+		private final ResultCallback<T> callback;
+		// The value of System#nanoTime() when the call times out, if there's
+		// a call timeout
+		private final long deadline;
+
+		@GuardedBy("this")
+		@Nullable
+		private Lyrebird lyrebird = null;
+		@GuardedBy("this")
+		@Nullable
+		private Call call = null;
+		@GuardedBy("this")
+		private boolean canceled = false;
+		private volatile long startTime = 0;
+
+		private AsyncCall(Request request, DomainFront front, BodyParser<T> parser,
+				ResultCallback<T> callback, long deadline) {
+			this.request = request;
+			this.front = front;
+			this.parser = parser;
+			this.callback = callback;
+			this.deadline = deadline;
+		}
+
+		@Override
+		public void cancel() {
+			Call c;
+			synchronized (this) {
+				if (canceled) return;
+				canceled = true;
+				c = call;
+			}
+			if (c != null) c.cancel();
+			else lyrebirdPool.cancel(this);
+		}
+
+		@Override
+		public synchronized boolean isCanceled() {
+			return canceled;
+		}
+
+		@Override
+		public void onLyrebirdReady(Lyrebird lyrebird) {
+			Call c;
+			try {
+				c = getClient(lyrebird, front).newCall(request);
+				// Connecting, the TLS handshake and reading the response must
+				// all finish within the time that's left
+				if (callTimeoutMs > 0) c.timeout().deadlineNanoTime(deadline);
+			} catch (IOException e) {
+				lyrebirdPool.release(lyrebird);
+				onLyrebirdFailure(e);
+				return;
+			}
+			synchronized (this) {
+				if (canceled) {
+					lyrebirdPool.release(lyrebird);
+					return;
+				}
+				this.lyrebird = lyrebird;
+				call = c;
+			}
+			startTime = System.currentTimeMillis();
+			c.enqueue(this);
+		}
+
+		/**
+		 * Returns the time since the request was sent, not counting the time
+		 * taken to start lyrebird.
+		 */
+		private long getElapsedMs() {
+			return System.currentTimeMillis() - startTime;
+		}
+
+		@Override
+		public void onLyrebirdFailure(IOException e) {
+			if (!isCanceled()) callback.onFailure(e);
+		}
+
+		@Override
+		public void onResponse(Call call, Response response) {
+			T result;
+			try (Response r = response) {
+				result = parseResponse(r, parser);
+			} catch (IOException e) {
+				onFailure(call, e);
+				return;
+			}
+			releaseLyrebird();
+			if (!isCanceled()) callback.onResult(result);
+		}
+
+		@Override
+		public void onFailure(Call call, IOException e) {
+			releaseLyrebird();
+			if (!isCanceled()) callback.onFailure(e);
+		}
+
+		private void releaseLyrebird() {
+			Lyrebird l;
+			synchronized (this) {
+				l = lyrebird;
+				lyrebird = null;
+			}
+			if (l != null) lyrebirdPool.release(l);
+		}
+	}
+
+	/**
+	 * Races requests through several fronts. Requests are started one at a
+	 * time, with a delay between them, until one succeeds. If all requests
+	 * that have been started fail, the next one is started without waiting.
+	 * Once every front has been tried, further attempts are retries and
+	 * hedged attempts allowed by the {@link RetryPolicy}. If lyrebird fails,
+	 * no more fronts are tried, as they would all need lyrebird, and the
+	 * whole request is retried if the policy allows it.
+	 */
+	private class RaceCall<T> implements MoatCall {
+
+		private final Request request;
+		private final List<DomainFront> fronts;
+		private final BodyParser<T> parser;
+		private final ResultCallback<T> callback;
+		// The value of System#nanoTime() when the call times out, if there's
+		// a call timeout
+		private final long deadline;
+
+		@GuardedBy("this")
+		private final List<MoatCall> attempts = new ArrayList<>();
+		@GuardedBy("this")
+		private int failed = 0, retries = 0, hedges = 0;
+		@GuardedBy("this")
+		private boolean done = false, canceled = false;
+		@GuardedBy("this")
+		@Nullable
+		private ScheduledFuture<?> nextAttempt = null, timeout = null;
+
+		private RaceCall(Request request, List<DomainFront> fronts, BodyParser<T> parser,
+				ResultCallback<T> callback) {
+			this.request = request;
+			this.fronts = fronts;
+			this.parser = parser;
+			this.callback = callback;
+			deadline = System.nanoTime() + MILLISECONDS.toNanos(callTimeoutMs);
+		}
+
+		private void start() {
+			attemptBudget.onRequest();
+			if (callTimeoutMs > 0) {
+				synchronized (this) {
+					timeout = scheduleIo(this::onTimeout, callTimeoutMs, MILLISECONDS);
+				}
+			}
+			startNextAttempt();
+		}
+
+		private void onTimeout() {
+			synchronized (this) {
+				if (done) return;
+				done = true;
+			}
+			LOG.info("Call timed out");
+			// Cancelling the attempts also stops lyrebird if it's still starting
+			// and no other calls are waiting for it
+			cancelAttempts();
+			callback.onFailure(new InterruptedIOException("Call timed out"));
+		}
+
+		private void startNextAttempt() {
+			AsyncCall<T> attempt;
+			boolean first;
+			synchronized (this) {
+				if (done) return;
+				if (nextAttempt != null) cancelTask(nextAttempt);
+				nextAttempt = null;
+				// After every front has been tried, cycle through them again
+				DomainFront front = fronts.get(attempts.size() % fronts.size());
+				Attempt a = new Attempt(front);
+				attempt = new AsyncCall<>(request, front, parser, a, deadline);
+				a.call = attempt;
+				attempts.add(attempt);
+				first = attempts.size() == 1;
+				if (attempts.size() < fronts.size() || hedges < retryPolicy.maxHedges) {
+					nextAttempt = scheduleIo(this::onRaceDelay, raceDelayMs, MILLISECONDS);
+				}
+			}
+			if (metrics != null && !first) metrics.onRetry();
+			lyrebirdPool.acquire(attempt);
+		}
+
+		private void onRaceDelay() {
+			synchronized (this) {
+				if (done) return;
+				if (attempts.size() >= fronts.size()) {
+					// Every front has been tried, so this is a hedged attempt
+					if (hedges == retryPolicy.maxHedges || !attemptBudget.tryAcquire()) return;
+					hedges++;
+				}
+			}
+			startNextAttempt();
+		}
+
+		@Override
+		public void cancel() {
+			synchronized (this) {
+				if (done) return;
+				done = true;
+				canceled = true;
+			}
+			cancelAttempts();
+		}
+
+		@Override
+		public synchronized boolean isCanceled() {
+			return canceled;
+		}
+
+		private void cancelAttempts() {
+			List<MoatCall> outstanding;
+			synchronized (this) {
+				if (nextAttempt != null) cancelTask(nextAttempt);
+				if (timeout != null) cancelTask(timeout);
+				outstanding = new ArrayList<>(attempts);
+			}
+			// Cancelling an attempt that has already finished has no effect
+			for (MoatCall c : outstanding) c.cancel();
+		}
+
+		private class Attempt implements ResultCallback<T> {
+
+			private final DomainFront front;
+			@Nullable
+			private volatile AsyncCall<T> call = null;
+
+			private Attempt(DomainFront front) {
+				this.front = front;
+			}
+
+			@Override
+			public void onResult(T result) {
+				synchronized (RaceCall.this) {
+					if (done) return;
+					done = true;
+				}
+				cancelAttempts();
+				frontStats.onSuccess(front, requireNonNull(call).getElapsedMs());
+				callback.onResult(result);
+			}
+
+			@Override
+			public void onFailure(IOException e) {
+				if (e instanceof ClientSetupException) {
+					// Other fronts and retries would fail in the same way
+					synchronized (RaceCall.this) {
+						if (done) return;
+						done = true;
+					}
+					cancelAttempts();
+					callback.onFailure(e);
+					return;
+				}
+				// Failures to start lyrebird aren't the front's fault
+				boolean lyrebirdFailure = e instanceof LyrebirdException;
+				if (!lyrebirdFailure) {
+					LOG.info("Request through front " + MoatApi.this.fronts.indexOf(front)
+							+ " failed: " + e);
+					frontStats.onFailure(front, System.currentTimeMillis());
+				}
+				boolean lastAttempt = false, startNext = false;
+				synchronized (RaceCall.this) {
+					if (done) return;
+					failed++;
+					// Trying the next front would start lyrebird again, so
+					// retry or fail the whole race instead
+					if (lyrebirdFailure && nextAttempt != null) {
+						cancelTask(nextAttempt);
+						nextAttempt = null;
+					}
+					// Wait for any other attempts that are still running
+					if (failed < attempts.size()) return;
+					if (attempts.size() < fronts.size() && !lyrebirdFailure) {
+						startNext = true;
+					} else if (retries < retryPolicy.maxRetries && RetryPolicy.isRetryable(e)
+							&& attemptBudget.tryAcquire()) {
+						retries++;
+						long delay = retryPolicy.getBackoff(retries);
+						if (LOG.isLoggable(INFO)) LOG.info("Retrying in " + delay + " ms");
+						if (nextAttempt != null) cancelTask(nextAttempt);
+						nextAttempt = scheduleIo(RaceCall.this::startNextAttempt, delay,
+								MILLISECONDS);
+					} else {
+						lastAttempt = true;
+						done = true;
+					}
+				}
+				if (lastAttempt) {
+					cancelAttempts();
+					callback.onFailure(e);
+				} else if (startNext) {
+					startNextAttempt();
+				}
+			}
+		}
+	}
+
+	/**
+	 * An upstream request for a country's settings, which is shared by
+	 * concurrent requests for the same country and populates the cache, if
+	 * caching is enabled.
+	 */
+	private class Fetch implements ResultCallback<List<Bridges>> {
+
+		private final String country;
+
+		// The following fields are guarded by the fetches lock
+		private final List<Waiter> waiters = new ArrayList<>();
+		private boolean background = false;
+		@Nullable
+		private MoatCall upstream = null;
+
+		private Fetch(String country) {
+			this.country = country;
+		}
+
+		private void start() {
+			MoatCall call = fetch(country, this);
+			boolean cancel;
+			synchronized (fetches) {
+				upstream = call;
+				// All waiters may have been cancelled before we got here
+				cancel = waiters.isEmpty() && !background && fetches.get(country) != this;
+			}
+			// Cancelling may call into the lyrebird pool, so don't hold the lock
+			if (cancel) call.cancel();
+		}
+
+		private void cancel(Waiter waiter) {
+			MoatCall call = null;
+			synchronized (fetches) {
+				if (!waiters.remove(waiter)) return;
+				if (waiters.isEmpty() && !background && fetches.remove(country) != null) {
+					call = upstream;
+				}
+			}
+			if (call != null) call.cancel();
+		}
+
+		@Override
+		public void onResult(List<Bridges> bridges) {
+			bridges = CompactList.copyOf(bridges);
+			if (cache != null) {
+				long now = System.currentTimeMillis();
+				cache.put(country, bridges, now);
+				if (diskCache != null) diskCache.store(country, bridges, now);
+			}
+			for (Waiter w : finish()) w.callback.onResult(bridges);
+		}
+
+		@Override
+		public void onFailure(IOException e) {
+			if (background) LOG.warning("Failed to refresh stale cache entry: " + e);
+			for (Waiter w : finish()) w.callback.onFailure(e);
+		}
+
+		private List<Waiter> finish() {
+			synchronized (fetches) {
+				if (fetches.get(country) == this) fetches.remove(country);
+				List<Waiter> finished = new ArrayList<>(waiters);
+				waiters.clear();
+				return finished;
+			}
+		}
+	}
+
+	/**
+	 * A request that's waiting for a shared {@link Fetch}.
+	 */
+	private class Waiter implements MoatCall {
+
+		private final ResultCallback<List<Bridges>> callback;
+
+		// The following fields are guarded by the fetches lock
+		@Nullable
+		private Fetch fetch = null;
+		private boolean canceled = false;
+
+		private Waiter(ResultCallback<List<Bridges>> callback) {
+			this.callback = callback;
+		}
+
+		@Override
+		public void cancel() {
+			Fetch f;
+			synchronized (fetches) {
+				if (canceled) return;
+				canceled = true;
+				f = fetch;
+			}
+			if (f != null) f.cancel(this);
+		}
+
+		@Override
+		public boolean isCanceled() {
+			synchronized (fetches) {
+				return canceled;
+			}
+		}
+	}
+
+	/**
+	 * A request that's loading a country's settings from the disk cache, and
+	 * joins a shared {@link Fetch} if they aren't on disk or are too stale to
+	 * be served.
+	 */
+	private class DiskLoad implements MoatCall {
+
+		private final String country;
+		private final ResultCallback<List<Bridges>> callback;
+
+		@GuardedBy("this")
+		private boolean canceled = false;
+		@GuardedBy("this")
+		@Nullable
+		private MoatCall call = null;
+
+		private DiskLoad(String country, ResultCallback<List<Bridges>> callback) {
+			this.country = country;
+			this.callback = callback;
+		}
+
+		private void load() {
+			synchronized (this) {
+				if (canceled) return;
+			}
+			BridgesCache c = requireNonNull(cache);
+			long now = System.currentTimeMillis();
+			BridgesCache.Entry entry = requireNonNull(diskCache).load(country, now);
+			if (entry != null && !c.isExpired(entry, now)) {
+				c.put(country, entry.bridges, entry.timestamp);
+				if (!c.isFresh(entry, now)) refresh(country);
+				synchronized (this) {
+					if (canceled) return;
+				}
+				callback.onResult(entry.bridges);
+			} else {
+				MoatCall joined = join(country, callback);
+				boolean cancel;
+				synchronized (this) {
+					call = joined;
+					cancel = canceled;
+				}
+				if (cancel) joined.cancel();
+			}
+		}
+
+		@Override
+		public void cancel() {
+			MoatCall c;
+			synchronized (this) {
+				if (canceled) return;
+				canceled = true;
+				c = call;
+			}
+			if (c != null) c.cancel();
+		}
+
+		@Override
+		public synchronized boolean isCanceled() {
+			return canceled;
+		}
+	}
+
+	/**
+	 * A call that was completed from the cache before it was returned.
+	 */
+	@NotNullByDefault
+	private static class CompletedCall implements MoatCall {
+
+		@Override
+		public void cancel() {
+		}
+
+		@Override
+		public boolean isCanceled() {
+			return false;
+		}
+	}
+
+	public static class Builder {
+
+		private final File lyrebirdExecutable, lyrebirdDir;
+		private final List<DomainFront> fronts;
+		private long raceDelayMs = DEFAULT_RACE_DELAY;
+		private boolean addIsrgRootCertificate = false, prewarm = false;
+		private long idleTimeoutMs = LYREBIRD_IDLE_TIMEOUT;
+		private long startupTimeoutMs = DEFAULT_STARTUP_TIMEOUT;
+		private long connectTimeoutMs = DEFAULT_CONNECT_TIMEOUT;
+		private long readTimeoutMs = DEFAULT_READ_TIMEOUT;
+		private long callTimeoutMs = 0;
+		private RetryPolicy retryPolicy = RetryPolicy.NONE;
+		private int cacheMaxEntries = 0;
+		private int maxSnapshots = DEFAULT_MAX_SNAPSHOTS;
+		private long cacheTtlMs = 0, cacheMaxStaleMs = 0, diskCacheMaxAgeMs = 0;
+		@Nullable
+		private MoatMetrics metrics = null;
+		@Nullable
+		private X509TrustManager trustManager = null;
+		@Nullable
+		private LyrebirdLimiter limiter = null;
+		@Nullable
+		private ExecutorService callExecutor = null;
+
+		public Builder(File lyrebirdExecutable, File lyrebirdDir, String url, String front) {
+			this(lyrebirdExecutable, lyrebirdDir, singletonList(new DomainFront(url, front)));
+		}
+
+		/**
+		 * Creates a builder for an API that races requests through the given
+		 * fronts. The fronts are tried in the given order, except that the
+		 * front that answered the last successful request is tried first.
+		 */
+		public Builder(File lyrebirdExecutable, File lyrebirdDir, List<DomainFront> fronts) {
+			if (fronts.isEmpty()) throw new IllegalArgumentException();
+			this.lyrebirdExecutable = lyrebirdExecutable;
+			this.lyrebirdDir = lyrebirdDir;
+			this.fronts = fronts;
+		}
+
+		/**
+		 * Sets how long to wait for a response through one front before also
+		 * trying the next front. Once every front has been tried, this is also
+		 * how long to wait before starting a hedged attempt, if the
+		 * {@link RetryPolicy} allows it.
+		 */
+		public Builder raceDelay(long delay, TimeUnit unit) {
+			if (delay < 0) throw new IllegalArgumentException();
+			raceDelayMs = unit.toMillis(delay);
+			return this;
+		}
+
+		/**
+		 * Sets the policy for retrying failed requests and starting hedged
+		 * attempts for slow requests. By default, each front is tried once.
+		 */
+		public Builder retryPolicy(RetryPolicy retryPolicy) {
+			this.retryPolicy = retryPolicy;
+			return this;
+		}
+
+		/**
+		 * Sets how long lyrebird is kept running after the last request, so
+		 * that it can be reused by later requests. A timeout of zero stops
+		 * lyrebird as soon as no requests are using it, which saves battery
+		 * but makes every request wait for lyrebird to start. The default
+		 * is one minute, so {@link MoatApi#close()} must be called to stop
+		 * lyrebird when the API is no longer needed.
+		 */
+		public Builder idleTimeout(long timeout, TimeUnit unit) {
+			if (timeout < 0) throw new IllegalArgumentException();
+			idleTimeoutMs = unit.toMillis(timeout);
+			return this;
+		}
+
+		/**
+		 * Sets how long to wait for lyrebird to start and report its port.
+		 * The default is 30 seconds.
+		 */
+		public Builder startupTimeout(long timeout, TimeUnit unit) {
+			if (timeout < 1) throw new IllegalArgumentException();
+			startupTimeoutMs = unit.toMillis(timeout);
+			return this;
+		}
+
+		/**
+		 * Sets how long to wait for a connection through lyrebird to the
+		 * Moat server, including the meek tunnel and the TLS handshake. The
+		 * default is two minutes.
+		 */
+		public Builder connectTimeout(long timeout, TimeUnit unit) {
+			if (timeout < 1) throw new IllegalArgumentException();
+			connectTimeoutMs = unit.toMillis(timeout);
+			return this;
+		}
+
+		/**
+		 * Sets how long to wait for data from the Moat server once
+		 * connected. The default is 30 seconds.
+		 */
+		public Builder readTimeout(long timeout, TimeUnit unit) {
+			if (timeout < 1) throw new IllegalArgumentException();
+			readTimeoutMs = unit.toMillis(timeout);
+			return this;
+		}
+
+		/**
+		 * Sets a deadline for each upstream request, covering lyrebird
+		 * startup and the requests through all fronts. Each request through a
+		 * front must finish connecting and reading within the time that's
+		 * left. When the deadline passes, all outstanding work for the request
+		 * is cancelled and it fails with an {@link InterruptedIOException}.
+		 * By default there's no deadline.
+		 */
+		public Builder callTimeout(long timeout, TimeUnit unit) {
+			if (timeout < 0) throw new IllegalArgumentException();
+			callTimeoutMs = unit.toMillis(timeout);
+			return this;
+		}
+
+		/**
+		 * Starts lyrebird when the API is built, as if {@link MoatApi#prewarm()}
+		 * was called.
+		 */
+		public Builder prewarm(boolean prewarm) {
+			this.prewarm = prewarm;
+			return this;
+		}
+
+		/**
+		 * Sets the executor that runs blocking network calls. By default,
+		 * OkHttp creates its own threads, or calls run on virtual threads on
+		 * Java 21 or later. The executor isn't shut down when the API is
+		 * closed.
+		 */
+		public Builder executor(ExecutorService executor) {
+			this.callExecutor = executor;
+			return this;
+		}
+
+		/**
+		 * Limits the number of lyrebird processes that can run at the same
+		 * time, across all instances built with the same limiter. By default,
+		 * there's no limit.
+		 */
+		public Builder lyrebirdLimiter(LyrebirdLimiter limiter) {
+			this.limiter = limiter;
+			return this;
+		}
+
+		public Builder addIsrgRootCertificate(boolean addIsrgRootCertificate) {
+			this.addIsrgRootCertificate = addIsrgRootCertificate;
+			return this;
+		}
+
+		/**
+		 * Sets how many results {@link MoatApi#getVersion(List)} and
+		 * {@link MoatApi#diff(String, List)} remember for computing diffs.
+		 * Results are shared by all countries, so this should be at least
+		 * the number of countries times the number of versions that clients
+		 * may hold for each country. The default is 16.
+		 */
+		public Builder maxSnapshots(int maxSnapshots) {
+			if (maxSnapshots < 1) throw new IllegalArgumentException();
+			this.maxSnapshots = maxSnapshots;
+			return this;
+		}
+
+		/**
+		 * Enables an in-memory cache of responses for up to the given number
+		 * of countries. Cached responses are fresh for the given TTL, after
+		 * which they may be served for up to the given maximum staleness
+		 * while they're refreshed in the background.
+		 */
+		public Builder cache(int maxEntries, long ttl, long maxStale, TimeUnit unit) {
+			if (maxEntries < 1 || ttl < 0 || maxStale < 0) throw new IllegalArgumentException();
+			cacheMaxEntries = maxEntries;
+			cacheTtlMs = unit.toMillis(ttl);
+			cacheMaxStaleMs = unit.toMillis(maxStale);
+			return this;
+		}
+
+		/**
+		 * Enables a disk cache of responses in the lyrebird state directory.
+		 * This requires the in-memory cache to be enabled. After a restart,
+		 * responses up to the given maximum age are loaded from disk on a
+		 * background thread and served while they're refreshed in the
+		 * background, unless they're older than the in-memory cache's TTL
+		 * plus its maximum staleness.
+		 */
+		public Builder diskCache(long maxAge, TimeUnit unit) {
+			if (maxAge < 1) throw new IllegalArgumentException();
+			diskCacheMaxAgeMs = unit.toMillis(maxAge);
+			return this;
+		}
+
+		/**
+		 * Reports the duration of each phase of a request, and any retries
+		 * and failures, to the given metrics. No timings are taken if this
+		 * isn't set.
+		 */
+		public Builder metrics(MoatMetrics metrics) {
+			this.metrics = metrics;
+			return this;
+		}
+
+		/**
+		 * Replaces the default trust manager, so that tests can connect to
+		 * a local server.
+		 */
+		Builder trustManager(X509TrustManager trustManager) {
+			this.trustManager = trustManager;
+			return this;
+		}
+
+		public MoatApi build() {
+			return new MoatApi(this);
+		}
 	}
 }
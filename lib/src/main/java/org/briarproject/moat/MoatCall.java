@@ -0,0 +1,18 @@
+package org.briarproject.moat;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+/**
+ * An asynchronous Moat request that can be cancelled.
+ */
+@NotNullByDefault
+public interface MoatCall {
+
+	/**
+	 * Cancels the request. If it's waiting for lyrebird to start and no other
+	 * requests are waiting for the same process, the process is destroyed.
+	 */
+	void cancel();
+
+	boolean isCanceled();
+}
@@ -0,0 +1,21 @@
+package org.briarproject.moat;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Receives the result of an asynchronous Moat request. The callback is
+ * usually called on a background thread, but if a result is available in the
+ * in-memory cache it's called on the calling thread before
+ * {@link MoatApi#getAsync(String, MoatCallback)} returns. It isn't called
+ * after the request is cancelled.
+ */
+@NotNullByDefault
+public interface MoatCallback {
+
+	void onResponse(List<Bridges> bridges);
+
+	void onFailure(IOException e);
+}
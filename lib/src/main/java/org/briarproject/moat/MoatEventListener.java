@@ -0,0 +1,81 @@
+package org.briarproject.moat;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+
+import javax.annotation.Nullable;
+
+import okhttp3.Call;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.Protocol;
+import okhttp3.Response;
+
+import static org.briarproject.moat.MoatPhase.REQUEST;
+import static org.briarproject.moat.MoatPhase.SOCKS_CONNECT;
+import static org.briarproject.moat.MoatPhase.TLS_HANDSHAKE;
+
+/**
+ * Reports the connection and request phases of an OkHttp call to
+ * {@link MoatMetrics}. A new listener must be used for each call.
+ */
+@NotNullByDefault
+public class MoatEventListener extends EventListener {
+
+	public static EventListener.Factory factory(MoatMetrics metrics) {
+		return call -> new MoatEventListener(metrics);
+	}
+
+	private final MoatMetrics metrics;
+
+	private long connectStart = 0, secureConnectStart = 0, requestStart = 0;
+
+	public MoatEventListener(MoatMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	@Override
+	public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+		connectStart = System.nanoTime();
+		secureConnectStart = 0;
+	}
+
+	@Override
+	public void secureConnectStart(Call call) {
+		secureConnectStart = System.nanoTime();
+		// The SOCKS connection through meek is complete when TLS starts
+		metrics.onPhaseCompleted(SOCKS_CONNECT, secureConnectStart - connectStart);
+	}
+
+	@Override
+	public void secureConnectEnd(Call call, @Nullable Handshake handshake) {
+		metrics.onPhaseCompleted(TLS_HANDSHAKE, System.nanoTime() - secureConnectStart);
+	}
+
+	@Override
+	public void connectFailed(Call call, InetSocketAddress inetSocketAddress, Proxy proxy,
+			@Nullable Protocol protocol, IOException ioe) {
+		// Calls that lost a race are cancelled, which isn't a failure
+		if (call.isCanceled()) return;
+		metrics.onPhaseFailed(secureConnectStart == 0 ? SOCKS_CONNECT : TLS_HANDSHAKE, ioe);
+	}
+
+	@Override
+	public void requestHeadersStart(Call call) {
+		requestStart = System.nanoTime();
+	}
+
+	@Override
+	public void responseHeadersEnd(Call call, Response response) {
+		metrics.onPhaseCompleted(REQUEST, System.nanoTime() - requestStart);
+	}
+
+	@Override
+	public void callFailed(Call call, IOException ioe) {
+		// Connection failures have already been reported
+		if (requestStart != 0 && !call.isCanceled()) metrics.onPhaseFailed(REQUEST, ioe);
+	}
+}
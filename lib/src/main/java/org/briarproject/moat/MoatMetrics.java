@@ -0,0 +1,30 @@
+package org.briarproject.moat;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.io.IOException;
+
+/**
+ * Receives timings and failures of the phases of Moat requests. Methods may
+ * be called concurrently on any thread, so implementations should be fast
+ * and thread-safe.
+ */
+@NotNullByDefault
+public interface MoatMetrics {
+
+	/**
+	 * Called when a phase has completed successfully.
+	 */
+	void onPhaseCompleted(MoatPhase phase, long durationNanos);
+
+	/**
+	 * Called when a phase has failed.
+	 */
+	void onPhaseFailed(MoatPhase phase, IOException e);
+
+	/**
+	 * Called when a request is attempted again, for example through another
+	 * front.
+	 */
+	void onRetry();
+}
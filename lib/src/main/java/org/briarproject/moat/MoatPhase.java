@@ -0,0 +1,44 @@
+package org.briarproject.moat;
+
+/**
+ * The phases of a Moat request that are reported to {@link MoatMetrics}.
+ */
+public enum MoatPhase {
+
+	/**
+	 * Starting the lyrebird process.
+	 */
+	LYREBIRD_START,
+
+	/**
+	 * Waiting for lyrebird to report the port of its SOCKS listener.
+	 */
+	PORT_DISCOVERY,
+
+	/**
+	 * Connecting to the SOCKS listener and through meek to the Moat server.
+	 */
+	SOCKS_CONNECT,
+
+	/**
+	 * The TLS handshake with the Moat server.
+	 */
+	TLS_HANDSHAKE,
+
+	/**
+	 * Validating the server's certificate chain against the ISRG root
+	 * certificate. This is only reported if the default trust manager
+	 * doesn't accept the chain.
+	 */
+	CERTIFICATE_VALIDATION,
+
+	/**
+	 * Sending the request and receiving the response headers.
+	 */
+	REQUEST,
+
+	/**
+	 * Receiving and parsing the response body.
+	 */
+	PARSE
+}
@@ -0,0 +1,379 @@
+package org.briarproject.moat;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import static java.util.Collections.emptyList;
+import static java.util.Locale.ROOT;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.logging.Level.INFO;
+import static java.util.logging.Logger.getLogger;
+import static org.briarproject.moat.Schedulers.cancelTask;
+import static org.briarproject.moat.Schedulers.scheduleIo;
+
+/**
+ * Keeps the settings for a set of countries up to date by refreshing them
+ * in the background, and notifies listeners when the settings for a country
+ * change.
+ * <p>
+ * Each country's settings are refreshed before they expire, after a given
+ * fraction of their TTL has passed. After a failure, the refresh is retried
+ * with exponential backoff. All delays, including the delay before the
+ * first refresh, are spread randomly so that many clients started at the
+ * same time don't refresh in lockstep. The number of refreshes in flight at
+ * the same time is limited, and other refreshes wait for them to finish.
+ * <p>
+ * Refreshes always make an upstream request, even if the API has a cached
+ * result, and the results are stored in the API's cache if caching is
+ * enabled.
+ */
+@ThreadSafe
+@NotNullByDefault
+public class MoatRefresher implements Closeable {
+
+	public interface Listener {
+
+		/**
+		 * Called on a background thread when the settings for a country have
+		 * been loaded for the first time or have changed. The diff lists the
+		 * bridge lines that were added and removed since the last
+		 * notification for the country. The refresher doesn't remember the
+		 * result, so to compute later diffs with
+		 * {@link MoatApi#diff(String, List)}, pass the result to
+		 * {@link MoatApi#getVersion(List)}.
+		 */
+		void onBridgesChanged(String country, List<Bridges> bridges, BridgesDiff diff);
+	}
+
+	private static final Logger LOG = getLogger(MoatRefresher.class.getName());
+
+	private static final double DEFAULT_REFRESH_AHEAD = 0.75;
+	private static final double DEFAULT_JITTER = 0.1;
+	private static final long DEFAULT_MIN_BACKOFF = MINUTES.toMillis(1);
+	private static final long DEFAULT_MAX_BACKOFF = HOURS.toMillis(1);
+	private static final long DEFAULT_START_SPREAD = SECONDS.toMillis(10);
+	private static final int DEFAULT_MAX_CONCURRENT_REFRESHES = 2;
+
+	private final MoatApi api;
+	private final long ttlMs, minBackoffMs, maxBackoffMs, startSpreadMs;
+	private final int maxConcurrentRefreshes;
+	private final double refreshAhead, jitter;
+	private final Random random;
+	private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+	// Keys and values are added by the constructor and not modified
+	private final Map<String, CountryState> countries = new LinkedHashMap<>();
+
+	@GuardedBy("this")
+	private boolean started = false, closed = false;
+	@GuardedBy("this")
+	private int inFlight = 0;
+	// Countries that are due to be refreshed, waiting for other refreshes
+	// to finish
+	@GuardedBy("this")
+	private final Deque<CountryState> pending = new ArrayDeque<>();
+
+	private MoatRefresher(Builder builder) {
+		api = builder.api;
+		ttlMs = builder.ttlMs;
+		minBackoffMs = builder.minBackoffMs;
+		maxBackoffMs = builder.maxBackoffMs;
+		startSpreadMs = builder.startSpreadMs;
+		maxConcurrentRefreshes = builder.maxConcurrentRefreshes;
+		refreshAhead = builder.refreshAhead;
+		jitter = builder.jitter;
+		random = builder.random;
+		for (String country : builder.countries) {
+			String c = country.trim().toLowerCase(ROOT);
+			countries.put(c, new CountryState(c));
+		}
+	}
+
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Starts refreshing. The first refresh of each country starts after a
+	 * random delay of up to the start spread.
+	 */
+	public synchronized void start() {
+		if (started || closed) throw new IllegalStateException();
+		started = true;
+		for (CountryState s : countries.values()) {
+			long delay = getInitialDelay(random.nextDouble());
+			s.next = scheduleIo(() -> refresh(s), delay, MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Returns the latest settings for the given country, or null if they
+	 * haven't been loaded yet or the country isn't refreshed.
+	 */
+	@Nullable
+	public List<Bridges> getLatest(String country) {
+		CountryState s = countries.get(country.trim().toLowerCase(ROOT));
+		if (s == null) return null;
+		synchronized (this) {
+			return s.latest;
+		}
+	}
+
+	/**
+	 * Stops refreshing. The API isn't closed.
+	 */
+	@Override
+	public void close() {
+		List<MoatCall> calls = new ArrayList<>();
+		synchronized (this) {
+			if (closed) return;
+			closed = true;
+			for (CountryState s : countries.values()) {
+				if (s.next != null) cancelTask(s.next);
+				if (s.call != null) calls.add(s.call);
+			}
+			pending.clear();
+		}
+		for (MoatCall c : calls) c.cancel();
+	}
+
+	/**
+	 * Returns the delay before the next refresh of a country after the given
+	 * number of consecutive failures, for a random number between 0 and 1.
+	 */
+	long getDelay(int failures, double r) {
+		long delay;
+		if (failures == 0) {
+			delay = (long) (ttlMs * refreshAhead);
+		} else {
+			delay = minBackoffMs;
+			for (int i = 1; i < failures && delay < maxBackoffMs; i++) delay *= 2;
+			delay = Math.min(delay, maxBackoffMs);
+		}
+		// Spread the delay randomly by up to the jitter in either direction
+		delay = (long) (delay * (1 - jitter + 2 * jitter * r));
+		// Refresh successful results before they expire
+		return failures == 0 ? Math.min(delay, ttlMs) : delay;
+	}
+
+	/**
+	 * Returns the delay before the first refresh of a country, for a random
+	 * number between 0 and 1.
+	 */
+	long getInitialDelay(double r) {
+		return (long) (startSpreadMs * r);
+	}
+
+	private void refresh(CountryState s) {
+		synchronized (this) {
+			if (closed) return;
+			s.next = null;
+			if (inFlight == maxConcurrentRefreshes) {
+				pending.add(s);
+				return;
+			}
+			inFlight++;
+		}
+		MoatCall call = api.getFresh(s.country, new ResultCallback<List<Bridges>>() {
+			@Override
+			public void onResult(List<Bridges> bridges) {
+				onRefreshed(s, bridges);
+			}
+
+			@Override
+			public void onFailure(IOException e) {
+				onRefreshFailed(s, e);
+			}
+		});
+		synchronized (this) {
+			// The call may have completed before it was returned
+			if (s.next == null && !closed) s.call = call;
+		}
+	}
+
+	private void onRefreshed(CountryState s, List<Bridges> bridges) {
+		List<Bridges> previous;
+		CountryState next;
+		synchronized (this) {
+			if (closed) return;
+			previous = s.latest;
+			s.latest = bridges;
+			s.call = null;
+			s.failures = 0;
+			scheduleRefresh(s);
+			next = onRefreshFinished();
+		}
+		if (next != null) refresh(next);
+		// Don't store a snapshot in the API, which would evict the snapshots
+		// of versions that callers are holding
+		BridgesDiff diff = BridgesDiff.compute(previous == null ? emptyList() : previous,
+				bridges, SnapshotCache.getVersion(bridges));
+		if (previous != null && diff.isEmpty()) {
+			LOG.info("Settings have not changed");
+			return;
+		}
+		if (LOG.isLoggable(INFO)) {
+			LOG.info("Settings have changed, version " + diff.version);
+		}
+		for (Listener l : listeners) l.onBridgesChanged(s.country, bridges, diff);
+	}
+
+	private void onRefreshFailed(CountryState s, IOException e) {
+		CountryState next;
+		synchronized (this) {
+			if (closed) return;
+			s.call = null;
+			s.failures++;
+			scheduleRefresh(s);
+			next = onRefreshFinished();
+		}
+		LOG.warning("Failed to refresh settings: " + e);
+		if (next != null) refresh(next);
+	}
+
+	/**
+	 * Returns the next country that's waiting to be refreshed, if any.
+	 */
+	@GuardedBy("this")
+	@Nullable
+	private CountryState onRefreshFinished() {
+		inFlight--;
+		return pending.poll();
+	}
+
+	@GuardedBy("this")
+	private void scheduleRefresh(CountryState s) {
+		long delay = getDelay(s.failures, random.nextDouble());
+		if (LOG.isLoggable(INFO)) LOG.info("Refreshing again in " + delay + " ms");
+		s.next = scheduleIo(() -> refresh(s), delay, MILLISECONDS);
+	}
+
+	@NotNullByDefault
+	private static class CountryState {
+
+		private final String country;
+
+		// The following fields are guarded by the refresher's lock
+		@Nullable
+		private List<Bridges> latest = null;
+		private int failures = 0;
+		@Nullable
+		private MoatCall call = null;
+		@Nullable
+		private ScheduledFuture<?> next = null;
+
+		private CountryState(String country) {
+			this.country = country;
+		}
+	}
+
+	public static class Builder {
+
+		private final MoatApi api;
+		private final Collection<String> countries;
+		private final long ttlMs;
+		private double refreshAhead = DEFAULT_REFRESH_AHEAD, jitter = DEFAULT_JITTER;
+		private long minBackoffMs = DEFAULT_MIN_BACKOFF, maxBackoffMs = DEFAULT_MAX_BACKOFF;
+		private long startSpreadMs = DEFAULT_START_SPREAD;
+		private int maxConcurrentRefreshes = DEFAULT_MAX_CONCURRENT_REFRESHES;
+		private Random random = new Random();
+
+		/**
+		 * Creates a builder for a refresher that keeps the settings for the
+		 * given countries up to date, treating them as expired after the given
+		 * TTL. Use an empty country code for the default settings.
+		 */
+		public Builder(MoatApi api, Collection<String> countries, long ttl, TimeUnit unit) {
+			if (countries.isEmpty() || ttl < 1) throw new IllegalArgumentException();
+			this.api = api;
+			this.countries = new ArrayList<>(countries);
+			ttlMs = unit.toMillis(ttl);
+		}
+
+		/**
+		 * Sets the fraction of the TTL after which settings are refreshed.
+		 * The default is 0.75.
+		 */
+		public Builder refreshAhead(double fraction) {
+			if (fraction <= 0 || fraction > 1) throw new IllegalArgumentException();
+			refreshAhead = fraction;
+			return this;
+		}
+
+		/**
+		 * Sets the fraction by which each delay is randomly lengthened or
+		 * shortened. The default is 0.1.
+		 */
+		public Builder jitter(double fraction) {
+			if (fraction < 0 || fraction >= 1) throw new IllegalArgumentException();
+			jitter = fraction;
+			return this;
+		}
+
+		/**
+		 * Sets the delay before retrying after a failure, which is doubled
+		 * after each consecutive failure up to the given maximum. The
+		 * defaults are one minute and one hour.
+		 */
+		public Builder backoff(long min, long max, TimeUnit unit) {
+			if (min < 1 || max < min) throw new IllegalArgumentException();
+			minBackoffMs = unit.toMillis(min);
+			maxBackoffMs = unit.toMillis(max);
+			return this;
+		}
+
+		/**
+		 * Sets the maximum delay before the first refresh of each country.
+		 * The delay is chosen randomly for each country. The default is ten
+		 * seconds.
+		 */
+		public Builder startSpread(long spread, TimeUnit unit) {
+			if (spread < 0) throw new IllegalArgumentException();
+			startSpreadMs = unit.toMillis(spread);
+			return this;
+		}
+
+		/**
+		 * Sets the maximum number of refreshes in flight at the same time.
+		 * The default is two.
+		 */
+		public Builder maxConcurrentRefreshes(int max) {
+			if (max < 1) throw new IllegalArgumentException();
+			maxConcurrentRefreshes = max;
+			return this;
+		}
+
+		Builder random(Random random) {
+			this.random = random;
+			return this;
+		}
+
+		public MoatRefresher build() {
+			return new MoatRefresher(this);
+		}
+	}
+}
@@ -0,0 +1,18 @@
+package org.briarproject.moat;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a Moat response can't be parsed.
+ */
+@NotNullByDefault
+class ParseException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	ParseException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,174 @@
+package org.briarproject.moat;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import static com.fasterxml.jackson.core.JsonToken.END_ARRAY;
+import static com.fasterxml.jackson.core.JsonToken.FIELD_NAME;
+import static com.fasterxml.jackson.core.JsonToken.START_ARRAY;
+import static com.fasterxml.jackson.core.JsonToken.START_OBJECT;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.unmodifiableMap;
+
+/**
+ * Parses Moat responses incrementally from a byte stream, without buffering
+ * the response or building a tree. The results are immutable, and strings
+ * are deduplicated across responses.
+ */
+@NotNullByDefault
+class ResponseParser {
+
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+	private static final String BUILTIN = StringInterner.intern("builtin");
+
+	/**
+	 * Parses a circumvention/settings response.
+	 */
+	static List<Bridges> parseResponse(InputStream in) throws IOException {
+		try (JsonParser p = JSON_FACTORY.createParser(in)) {
+			if (p.nextToken() != START_OBJECT) throw new ParseException("no settings in response");
+			return parseSettingsObject(p);
+		}
+	}
+
+	/**
+	 * Parses a circumvention/map response, which maps each country code to
+	 * an object in the same format as a circumvention/settings response.
+	 */
+	static Map<String, List<Bridges>> parseMap(InputStream in) throws IOException {
+		try (JsonParser p = JSON_FACTORY.createParser(in)) {
+			if (p.nextToken() != START_OBJECT) throw new ParseException("map not an object");
+			Map<String, List<Bridges>> map = new LinkedHashMap<>();
+			while (p.nextToken() == FIELD_NAME) {
+				String country = StringInterner.intern(p.getCurrentName());
+				if (p.nextToken() != START_OBJECT) throw new ParseException("no settings in map");
+				map.put(country, parseSettingsObject(p));
+			}
+			return unmodifiableMap(map);
+		}
+	}
+
+	/**
+	 * Parses a circumvention/builtin response, which maps each transport
+	 * type to a list of bridge lines. The source of each entry is "builtin".
+	 */
+	static List<Bridges> parseBuiltin(InputStream in) throws IOException {
+		try (JsonParser p = JSON_FACTORY.createParser(in)) {
+			if (p.nextToken() != START_OBJECT) throw new ParseException("builtin not an object");
+			List<Bridges> bridges = new ArrayList<>();
+			while (p.nextToken() == FIELD_NAME) {
+				String type = StringInterner.intern(p.getCurrentName());
+				if (p.nextToken() != START_ARRAY) throw new ParseException("bridges not an array");
+				bridges.add(new Bridges(type, BUILTIN, parseStrings(p)));
+			}
+			return CompactList.copyOf(bridges);
+		}
+	}
+
+	/**
+	 * Parses a circumvention/countries response, which is a list of the
+	 * country codes for which settings are available.
+	 */
+	static List<String> parseCountries(InputStream in) throws IOException {
+		try (JsonParser p = JSON_FACTORY.createParser(in)) {
+			if (p.nextToken() != START_ARRAY) throw new ParseException("countries not an array");
+			return parseStrings(p);
+		}
+	}
+
+	private static List<Bridges> parseSettingsObject(JsonParser p) throws IOException {
+		List<Bridges> settings = null;
+		while (p.nextToken() == FIELD_NAME) {
+			String name = p.getCurrentName();
+			JsonToken value = p.nextToken();
+			if (name.equals("settings")) {
+				if (value != START_ARRAY) throw new ParseException("settings not an array");
+				settings = parseSettings(p);
+			} else {
+				p.skipChildren();
+			}
+		}
+		if (settings == null) throw new ParseException("no settings in response");
+		return settings;
+	}
+
+	private static List<String> parseStrings(JsonParser p) throws IOException {
+		List<String> strings = new ArrayList<>();
+		while (p.nextToken() != END_ARRAY) strings.add(StringInterner.intern(getText(p)));
+		return CompactList.copyOf(strings);
+	}
+
+	private static List<Bridges> parseSettings(JsonParser p) throws IOException {
+		List<Bridges> bridges = new ArrayList<>();
+		while (p.nextToken() != END_ARRAY) {
+			if (p.currentToken() != START_OBJECT) throw new ParseException("no bridges node");
+			Bridges b = null;
+			while (p.nextToken() == FIELD_NAME) {
+				String name = p.getCurrentName();
+				p.nextToken();
+				if (name.equals("bridges")) b = parseBridges(p);
+				else p.skipChildren();
+			}
+			if (b == null) throw new ParseException("no bridges node");
+			bridges.add(b);
+		}
+		return CompactList.copyOf(bridges);
+	}
+
+	private static Bridges parseBridges(JsonParser p) throws IOException {
+		if (p.currentToken() != START_OBJECT) throw new ParseException("bridges not an object");
+		String type = null, source = null;
+		List<String> bridgeStrings = emptyList();
+		while (p.nextToken() == FIELD_NAME) {
+			String name = p.getCurrentName();
+			JsonToken value = p.nextToken();
+			switch (name) {
+				case "type":
+					type = getText(p);
+					break;
+				case "source":
+					source = getText(p);
+					break;
+				case "bridge_strings":
+					if (value == START_ARRAY) {
+						bridgeStrings = parseStrings(p);
+					} else {
+						bridgeStrings = emptyList();
+						p.skipChildren();
+					}
+					break;
+				default:
+					p.skipChildren();
+			}
+		}
+		if (type == null) throw new ParseException("no type");
+		if (source == null) throw new ParseException("no source");
+		return new Bridges(StringInterner.intern(type), StringInterner.intern(source),
+				bridgeStrings);
+	}
+
+	/**
+	 * Returns the text of the current value, or an empty string if it's an
+	 * array or object.
+	 */
+	private static String getText(JsonParser p) throws IOException {
+		if (p.currentToken().isStructStart()) {
+			p.skipChildren();
+			return "";
+		}
+		@Nullable String text = p.getValueAsString();
+		return text == null ? p.getText() : text;
+	}
+}
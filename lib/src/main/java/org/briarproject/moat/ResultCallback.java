@@ -0,0 +1,16 @@
+package org.briarproject.moat;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.io.IOException;
+
+/**
+ * Receives the result of an asynchronous request to any Moat endpoint.
+ */
+@NotNullByDefault
+interface ResultCallback<T> {
+
+	void onResult(T result);
+
+	void onFailure(IOException e);
+}
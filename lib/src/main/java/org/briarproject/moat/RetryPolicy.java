@@ -0,0 +1,188 @@
+package org.briarproject.moat;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.security.cert.CertificateException;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import javax.net.ssl.SSLException;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.briarproject.moat.MoatPhase.CERTIFICATE_VALIDATION;
+import static org.briarproject.moat.MoatPhase.PARSE;
+import static org.briarproject.moat.MoatPhase.REQUEST;
+import static org.briarproject.moat.MoatPhase.SOCKS_CONNECT;
+import static org.briarproject.moat.MoatPhase.TLS_HANDSHAKE;
+
+/**
+ * Decides whether and when a failed request is retried, and how many hedged
+ * attempts may be started while a request is slow.
+ * <p>
+ * Each request is first tried once through each front, starting the next
+ * front when the previous one fails or the race delay passes. After that,
+ * if all attempts have failed with a retryable failure, the request is
+ * retried with exponential backoff. If an attempt is still running when
+ * the race delay passes again, a hedged attempt is started through the
+ * next front, and the first response is used. All Moat requests are
+ * idempotent lookups, so it's safe to send them more than once.
+ * <p>
+ * Retries and hedged attempts are limited by a budget that's shared by all
+ * requests made through the same {@link MoatApi}, so that they can't add
+ * more than a given fraction to the load on the fronts.
+ */
+@Immutable
+@NotNullByDefault
+public class RetryPolicy {
+
+	/**
+	 * A policy that doesn't retry or hedge. Each front is still tried once.
+	 */
+	public static final RetryPolicy NONE = new Builder().build();
+
+	final int maxRetries, maxHedges;
+	final long minBackoffMs, maxBackoffMs;
+	final double budgetRatio;
+
+	private RetryPolicy(Builder builder) {
+		maxRetries = builder.maxRetries;
+		maxHedges = builder.maxHedges;
+		minBackoffMs = builder.minBackoffMs;
+		maxBackoffMs = builder.maxBackoffMs;
+		budgetRatio = builder.budgetRatio;
+	}
+
+	/**
+	 * Returns the phase of a request in which the given failure most likely
+	 * occurred. Failures of the SOCKS connection can't always be told apart
+	 * from failures while the request is being sent, in which case
+	 * {@link MoatPhase#REQUEST} is returned.
+	 */
+	public static MoatPhase getPhase(IOException e) {
+		if (e instanceof LyrebirdException) return ((LyrebirdException) e).getPhase();
+		if (e instanceof HttpStatusException) return REQUEST;
+		if (e instanceof ParseException || e instanceof JsonProcessingException) return PARSE;
+		if (e instanceof SSLException) {
+			return hasCause(e, CertificateException.class) ? CERTIFICATE_VALIDATION
+					: TLS_HANDSHAKE;
+		}
+		if (e instanceof SocketException || e instanceof UnknownHostException) {
+			return SOCKS_CONNECT;
+		}
+		return REQUEST;
+	}
+
+	/**
+	 * Returns the HTTP status code of the given failure, or -1 if the
+	 * failure wasn't caused by an unsuccessful status code.
+	 */
+	public static int getHttpStatus(IOException e) {
+		return e instanceof HttpStatusException ? ((HttpStatusException) e).getCode() : -1;
+	}
+
+	/**
+	 * Returns true if a request that failed with the given exception may
+	 * succeed if it's retried. Lyrebird crashing or not reporting its port,
+	 * connection and TLS failures, timeouts and server errors are retryable.
+	 * Failures to start lyrebird or set up the HTTP client, certificate
+	 * validation failures, client errors and unparseable responses aren't,
+	 * as retrying would give the same result. Requests that reached their call timeout or were
+	 * interrupted aren't retried either.
+	 */
+	public static boolean isRetryable(IOException e) {
+		// A socket timeout is a transient failure of one attempt
+		if (e instanceof SocketTimeoutException) return true;
+		if (e instanceof InterruptedIOException) return false;
+		if (e instanceof ClientSetupException) return false;
+		switch (getPhase(e)) {
+			case LYREBIRD_START:
+			case CERTIFICATE_VALIDATION:
+			case PARSE:
+				return false;
+			case REQUEST:
+				int status = getHttpStatus(e);
+				return status == -1 || status == 429 || status >= 500;
+			default:
+				return true;
+		}
+	}
+
+	/**
+	 * Returns the delay before the given retry, counting from 1.
+	 */
+	long getBackoff(int retry) {
+		long delay = minBackoffMs;
+		for (int i = 1; i < retry && delay < maxBackoffMs; i++) delay *= 2;
+		return Math.min(delay, maxBackoffMs);
+	}
+
+	private static boolean hasCause(Throwable t, Class<? extends Throwable> type) {
+		for (@Nullable Throwable c = t; c != null; c = c.getCause()) {
+			if (type.isInstance(c)) return true;
+		}
+		return false;
+	}
+
+	public static class Builder {
+
+		private int maxRetries = 0, maxHedges = 0;
+		private long minBackoffMs = SECONDS.toMillis(1), maxBackoffMs = SECONDS.toMillis(30);
+		private double budgetRatio = 0.1;
+
+		/**
+		 * Sets how many times a request may be retried after all its
+		 * attempts have failed. The default is zero.
+		 */
+		public Builder maxRetries(int maxRetries) {
+			if (maxRetries < 0) throw new IllegalArgumentException();
+			this.maxRetries = maxRetries;
+			return this;
+		}
+
+		/**
+		 * Sets the delay before the first retry, which is doubled for each
+		 * further retry up to the given maximum. The defaults are one second
+		 * and 30 seconds.
+		 */
+		public Builder backoff(long min, long max, TimeUnit unit) {
+			if (min < 0 || max < min) throw new IllegalArgumentException();
+			minBackoffMs = unit.toMillis(min);
+			maxBackoffMs = unit.toMillis(max);
+			return this;
+		}
+
+		/**
+		 * Sets how many hedged attempts may be started for a request after
+		 * each front has been tried. A hedged attempt is started each time
+		 * the race delay passes without a response. The default is zero.
+		 */
+		public Builder maxHedges(int maxHedges) {
+			if (maxHedges < 0) throw new IllegalArgumentException();
+			this.maxHedges = maxHedges;
+			return this;
+		}
+
+		/**
+		 * Limits retries and hedged attempts to about the given fraction of
+		 * requests, after an initial allowance of ten extra attempts. The
+		 * default is 0.1.
+		 */
+		public Builder budget(double ratio) {
+			if (ratio < 0) throw new IllegalArgumentException();
+			budgetRatio = ratio;
+			return this;
+		}
+
+		public RetryPolicy build() {
+			return new RetryPolicy(this);
+		}
+	}
+}
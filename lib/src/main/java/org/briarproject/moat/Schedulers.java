@@ -0,0 +1,71 @@
+package org.briarproject.moat;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+@NotNullByDefault
+class Schedulers {
+
+	/**
+	 * A scheduler for short tasks, shared by all MoatApi instances. Its
+	 * thread is a daemon thread that exits when the scheduler is idle.
+	 */
+	static final ScheduledExecutorService SCHEDULER = createScheduler();
+
+	// Cancelled tasks are removed from the scheduler's queue after this many
+	// cancellations
+	private static final int PURGE_INTERVAL = 64;
+
+	private static final AtomicInteger cancellations = new AtomicInteger();
+
+	/**
+	 * An executor for blocking IO, such as reading the output of lyrebird
+	 * processes, shared by all MoatApi instances. Its threads are daemon
+	 * threads that exit when they're idle, or virtual threads on Java 21 or
+	 * later.
+	 */
+	static final ExecutorService IO_EXECUTOR = IoExecutors.createExecutor("MoatIo");
+
+	private static ScheduledExecutorService createScheduler() {
+		ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+			Thread t = new Thread(r, "MoatScheduler");
+			t.setDaemon(true);
+			return t;
+		});
+		scheduler.setKeepAliveTime(10, SECONDS);
+		scheduler.allowCoreThreadTimeOut(true);
+		// ScheduledThreadPoolExecutor#setRemoveOnCancelPolicy() is not
+		// available on older Android versions, so cancelTask() purges instead
+		return scheduler;
+	}
+
+	/**
+	 * Schedules a task to run on {@link #IO_EXECUTOR} after the given delay.
+	 * Tasks that call callbacks or start processes should be scheduled this
+	 * way, so they don't hold up other tasks on the scheduler's thread.
+	 */
+	static ScheduledFuture<?> scheduleIo(Runnable task, long delay, TimeUnit unit) {
+		return SCHEDULER.schedule(() -> IO_EXECUTOR.execute(task), delay, unit);
+	}
+
+	/**
+	 * Cancels a task scheduled on {@link #SCHEDULER}, and periodically
+	 * removes cancelled tasks from the scheduler's queue so that tasks with
+	 * long delays don't accumulate.
+	 */
+	static void cancelTask(Future<?> task) {
+		task.cancel(false);
+		if (cancellations.incrementAndGet() % PURGE_INTERVAL == 0) {
+			((ScheduledThreadPoolExecutor) SCHEDULER).purge();
+		}
+	}
+}
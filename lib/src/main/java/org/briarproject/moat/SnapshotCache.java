@@ -0,0 +1,149 @@
+package org.briarproject.moat;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Remembers recent results by their version tokens, so that a later result
+ * can be compared with the result a client last received.
+ */
+@ThreadSafe
+@NotNullByDefault
+class SnapshotCache {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	private static final int VERSION_BYTES = 16;
+
+	@GuardedBy("this")
+	private final LinkedHashMap<String, List<Bridges>> snapshots;
+
+	SnapshotCache(int maxSnapshots) {
+		if (maxSnapshots < 1) throw new IllegalArgumentException();
+		snapshots = new LinkedHashMap<String, List<Bridges>>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, List<Bridges>> eldest) {
+				return size() > maxSnapshots;
+			}
+		};
+	}
+
+	/**
+	 * Returns the version token of the given result and remembers the
+	 * result.
+	 */
+	String add(List<Bridges> bridges) {
+		String version = getVersion(bridges);
+		synchronized (this) {
+			snapshots.put(version, bridges);
+		}
+		return version;
+	}
+
+	@Nullable
+	synchronized List<Bridges> get(String version) {
+		return snapshots.get(version);
+	}
+
+	/**
+	 * Returns a token that identifies the content of the given result. Like
+	 * {@link BridgesDiff}, the token doesn't depend on the order of the
+	 * lines or how they're split between entries with the same type and
+	 * source.
+	 */
+	static String getVersion(List<Bridges> bridges) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new AssertionError(e);
+		}
+		// Hash each distinct line with its type and source, and add up the
+		// hashes, so the sum doesn't depend on the order of the lines.
+		// Prefix each string with its length, so different lines can't
+		// produce the same input to the digest
+		byte[] sum = new byte[digest.getDigestLength()];
+		int lines = 0;
+		for (Map.Entry<String, Map<String, Set<String>>> type : group(bridges).entrySet()) {
+			for (Map.Entry<String, Set<String>> source : type.getValue().entrySet()) {
+				for (String line : source.getValue()) {
+					update(digest, type.getKey());
+					update(digest, source.getKey());
+					update(digest, line);
+					add(sum, digest.digest());
+					lines++;
+				}
+			}
+		}
+		update(digest, lines);
+		digest.update(sum);
+		byte[] hash = digest.digest();
+		char[] hex = new char[VERSION_BYTES * 2];
+		for (int i = 0; i < VERSION_BYTES; i++) {
+			hex[i * 2] = HEX[(hash[i] >> 4) & 0xF];
+			hex[i * 2 + 1] = HEX[hash[i] & 0xF];
+		}
+		return new String(hex);
+	}
+
+	/**
+	 * Groups the lines of the given result by type and source, omitting
+	 * duplicate lines.
+	 */
+	private static Map<String, Map<String, Set<String>>> group(List<Bridges> bridges) {
+		Map<String, Map<String, Set<String>>> types = new HashMap<>();
+		for (Bridges b : bridges) {
+			Map<String, Set<String>> sources = types.get(b.type);
+			if (sources == null) {
+				sources = new HashMap<>();
+				types.put(b.type, sources);
+			}
+			Set<String> lines = sources.get(b.source);
+			if (lines == null) {
+				lines = new HashSet<>();
+				sources.put(b.source, lines);
+			}
+			lines.addAll(b.bridgeStrings);
+		}
+		return types;
+	}
+
+	/**
+	 * Adds the given hash to the given sum, treating both as unsigned
+	 * big-endian integers and discarding any overflow.
+	 */
+	private static void add(byte[] sum, byte[] hash) {
+		int carry = 0;
+		for (int i = sum.length - 1; i >= 0; i--) {
+			int s = (sum[i] & 0xFF) + (hash[i] & 0xFF) + carry;
+			sum[i] = (byte) s;
+			carry = s >> 8;
+		}
+	}
+
+	private static void update(MessageDigest digest, String s) {
+		byte[] b = s.getBytes(UTF_8);
+		update(digest, b.length);
+		digest.update(b);
+	}
+
+	private static void update(MessageDigest digest, int i) {
+		digest.update((byte) (i >> 24));
+		digest.update((byte) (i >> 16));
+		digest.update((byte) (i >> 8));
+		digest.update((byte) i);
+	}
+}
@@ -0,0 +1,33 @@
+package org.briarproject.moat;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Deduplicates strings that are likely to be repeated across responses,
+ * such as bridge lines that are returned for many countries. Strings are
+ * held weakly, so they can be garbage collected when no longer used.
+ */
+@ThreadSafe
+@NotNullByDefault
+class StringInterner {
+
+	@GuardedBy("StringInterner.class")
+	private static final Map<String, WeakReference<String>> STRINGS = new WeakHashMap<>();
+
+	static String intern(String s) {
+		synchronized (StringInterner.class) {
+			WeakReference<String> ref = STRINGS.get(s);
+			String interned = ref == null ? null : ref.get();
+			if (interned != null) return interned;
+			STRINGS.put(s, new WeakReference<>(s));
+			return s;
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package org.briarproject.moat;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * An LRU cache of certificate chains that have been validated against the
+ * ISRG root certificate, so that repeated handshakes with the same server
+ * don't have to verify the signatures again. Chains are identified by the
+ * SHA-256 fingerprints of their certificates, and each entry expires when
+ * the earliest-expiring certificate in the chain expires.
+ */
+@ThreadSafe
+@NotNullByDefault
+class VerifiedChainCache {
+
+	private static final int FINGERPRINT_BYTES = 32;
+
+	@GuardedBy("this")
+	private final LinkedHashMap<ByteBuffer, Long> entries;
+
+	VerifiedChainCache(int maxEntries) {
+		if (maxEntries < 1) throw new IllegalArgumentException();
+		entries = new LinkedHashMap<ByteBuffer, Long>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Long> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Returns a key identifying the given chain, or null if the chain can't
+	 * be encoded.
+	 */
+	@Nullable
+	static ByteBuffer getKey(X509Certificate[] chain) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			byte[] key = new byte[chain.length * FINGERPRINT_BYTES];
+			for (int i = 0; i < chain.length; i++) {
+				byte[] fingerprint = digest.digest(chain[i].getEncoded());
+				System.arraycopy(fingerprint, 0, key, i * FINGERPRINT_BYTES, FINGERPRINT_BYTES);
+			}
+			return ByteBuffer.wrap(key);
+		} catch (NoSuchAlgorithmException | CertificateEncodingException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns true if the chain with the given key has been validated and
+	 * none of its certificates have expired.
+	 */
+	synchronized boolean isVerified(ByteBuffer key, long now) {
+		Long expiry = entries.get(key);
+		if (expiry == null) return false;
+		if (now > expiry) {
+			entries.remove(key);
+			return false;
+		}
+		return true;
+	}
+
+	synchronized void add(ByteBuffer key, X509Certificate[] chain) {
+		long expiry = Long.MAX_VALUE;
+		for (X509Certificate c : chain) expiry = Math.min(expiry, c.getNotAfter().getTime());
+		entries.put(key, expiry);
+	}
+}
@@ -0,0 +1,35 @@
+package org.briarproject.moat;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.Nullable;
+
+import static org.briarproject.moat.Schedulers.IO_EXECUTOR;
+
+/**
+ * Creates executors for blocking IO. This is the Java 21 version of the
+ * class, which runs each task on a new virtual thread.
+ */
+@NotNullByDefault
+class IoExecutors {
+
+	/**
+	 * Creates an executor for blocking IO that runs each task on a new
+	 * virtual thread.
+	 */
+	static ExecutorService createExecutor(String name) {
+		return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 0).factory());
+	}
+
+	/**
+	 * Returns the executor that OkHttp should use for calls by default, or
+	 * null if OkHttp should create its own.
+	 */
+	@Nullable
+	static ExecutorService getDefaultCallExecutor() {
+		return IO_EXECUTOR;
+	}
+}
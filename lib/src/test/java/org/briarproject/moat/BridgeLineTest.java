@@ -0,0 +1,63 @@
+package org.briarproject.moat;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static java.util.Collections.emptyMap;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class BridgeLineTest {
+
+	@Test
+	public void testObfs4Line() {
+		BridgeLine line = new BridgeLine("obfs4 192.0.2.1:443 "
+				+ "8DFCD8FB3285E855F5A55EDDA35696C743ABFC4E cert=p9L6+25s8bnfkye1Zx iat-mode=0");
+		assertEquals("obfs4", line.getTransport());
+		assertEquals("192.0.2.1:443", line.getAddress());
+		assertEquals("8DFCD8FB3285E855F5A55EDDA35696C743ABFC4E", line.getFingerprint());
+		Map<String, String> params = new LinkedHashMap<>();
+		params.put("cert", "p9L6+25s8bnfkye1Zx");
+		params.put("iat-mode", "0");
+		assertEquals(params, line.getParams());
+		assertEquals("0", line.getParam("iat-mode"));
+		assertNull(line.getParam("url"));
+	}
+
+	@Test
+	public void testParamValueContainingEquals() {
+		BridgeLine line = new BridgeLine("snowflake 192.0.2.3:80 2B280B23E1107BB62ABFC40DDCC8824814F80A72"
+				+ " url=https://example.com/?a=b ice=stun:stun.example.com:3478");
+		assertEquals("snowflake", line.getTransport());
+		assertEquals("https://example.com/?a=b", line.getParam("url"));
+		assertEquals("stun:stun.example.com:3478", line.getParam("ice"));
+	}
+
+	@Test
+	public void testVanillaLine() {
+		BridgeLine line = new BridgeLine("192.0.2.1:9001 8DFCD8FB3285E855F5A55EDDA35696C743ABFC4E");
+		assertEquals("", line.getTransport());
+		assertEquals("192.0.2.1:9001", line.getAddress());
+		assertEquals("8DFCD8FB3285E855F5A55EDDA35696C743ABFC4E", line.getFingerprint());
+		assertEquals(emptyMap(), line.getParams());
+	}
+
+	@Test
+	public void testIpv6LineWithoutFingerprint() {
+		BridgeLine line = new BridgeLine("webtunnel [2001:db8::1]:443 url=https://example.com/");
+		assertEquals("webtunnel", line.getTransport());
+		assertEquals("[2001:db8::1]:443", line.getAddress());
+		assertNull(line.getFingerprint());
+		assertEquals("https://example.com/", line.getParam("url"));
+	}
+
+	@Test
+	public void testMalformedLine() {
+		BridgeLine line = new BridgeLine("");
+		assertEquals("", line.getAddress());
+		assertNull(line.getFingerprint());
+		assertEquals(emptyMap(), line.getParams());
+	}
+}
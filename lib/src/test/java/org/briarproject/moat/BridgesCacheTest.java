@@ -0,0 +1,56 @@
+package org.briarproject.moat;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BridgesCacheTest {
+
+	private final List<Bridges> bridges =
+			singletonList(new Bridges("obfs4", "builtin", emptyList()));
+
+	@Test
+	public void testEntryIsFreshUntilTtlExpires() {
+		BridgesCache cache = new BridgesCache(10, 1000, 500);
+		cache.put("cn", bridges, 0);
+
+		BridgesCache.Entry entry = cache.get("cn", 1000);
+		assertNotNull(entry);
+		assertSame(bridges, entry.bridges);
+		assertTrue(cache.isFresh(entry, 1000));
+		assertFalse(cache.isFresh(entry, 1001));
+	}
+
+	@Test
+	public void testStaleEntryIsServedUntilMaxStalenessExpires() {
+		BridgesCache cache = new BridgesCache(10, 1000, 500);
+		cache.put("cn", bridges, 0);
+
+		assertNotNull(cache.get("cn", 1500));
+		assertNull(cache.get("cn", 1501));
+		// The expired entry has been removed
+		assertNull(cache.get("cn", 0));
+	}
+
+	@Test
+	public void testLeastRecentlyUsedEntryIsEvicted() {
+		BridgesCache cache = new BridgesCache(2, 1000, 0);
+		cache.put("cn", bridges, 0);
+		cache.put("ir", bridges, 0);
+		// Use the older entry so the newer one becomes the eldest
+		assertNotNull(cache.get("cn", 0));
+		cache.put("ru", bridges, 0);
+
+		assertNotNull(cache.get("cn", 0));
+		assertNull(cache.get("ir", 0));
+		assertNotNull(cache.get("ru", 0));
+	}
+}
@@ -0,0 +1,125 @@
+package org.briarproject.moat;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BridgesDiffTest {
+
+	@TempDir
+	private File tempFolder;
+
+	private final List<Bridges> previous = asList(
+			new Bridges("obfs4", "builtin", asList("obfs4 a", "obfs4 b", "obfs4 c")),
+			new Bridges("snowflake", "builtin", singletonList("snowflake a")));
+
+	@Test
+	public void testAddedAndRemovedLinesAreGroupedByTypeAndSource() {
+		List<Bridges> current = asList(
+				new Bridges("obfs4", "builtin", asList("obfs4 b", "obfs4 d", "obfs4 a")),
+				new Bridges("obfs4", "bridgedb", singletonList("obfs4 e")));
+
+		BridgesDiff diff = BridgesDiff.compute(previous, current, "v");
+
+		assertEquals(2, diff.added.size());
+		assertBridges("obfs4", "builtin", singletonList("obfs4 d"), diff.added.get(0));
+		assertBridges("obfs4", "bridgedb", singletonList("obfs4 e"), diff.added.get(1));
+		assertEquals(2, diff.removed.size());
+		assertBridges("obfs4", "builtin", singletonList("obfs4 c"), diff.removed.get(0));
+		assertBridges("snowflake", "builtin", singletonList("snowflake a"),
+				diff.removed.get(1));
+	}
+
+	@Test
+	public void testReorderedResultHasEmptyDiff() {
+		List<Bridges> current = asList(
+				new Bridges("snowflake", "builtin", singletonList("snowflake a")),
+				new Bridges("obfs4", "builtin", asList("obfs4 c", "obfs4 b", "obfs4 a")));
+
+		assertTrue(BridgesDiff.compute(previous, current, "v").isEmpty());
+	}
+
+	@Test
+	public void testReorderedResultHasSameVersion() {
+		List<Bridges> current = asList(
+				new Bridges("snowflake", "builtin", singletonList("snowflake a")),
+				new Bridges("obfs4", "builtin", asList("obfs4 c", "obfs4 b")),
+				new Bridges("obfs4", "builtin", singletonList("obfs4 a")));
+		assertEquals(SnapshotCache.getVersion(previous), SnapshotCache.getVersion(current));
+
+		List<Bridges> changed = asList(
+				new Bridges("snowflake", "builtin", singletonList("snowflake a")),
+				new Bridges("obfs4", "bridgedb", asList("obfs4 a", "obfs4 b", "obfs4 c")));
+		assertNotEquals(SnapshotCache.getVersion(previous), SnapshotCache.getVersion(changed));
+	}
+
+	@Test
+	public void testMaxSnapshots() {
+		try (MoatApi api = new MoatApi.Builder(new File(tempFolder, "lyrebird"), tempFolder,
+				"https://example.com/", "front.example").maxSnapshots(2).build()) {
+			String version = api.getVersion(previous);
+			api.getVersion(emptyList());
+			assertNotNull(api.diff(version, previous));
+			api.getVersion(singletonList(new Bridges("obfs4", "builtin",
+					singletonList("obfs4 z"))));
+			assertNotNull(api.diff(version, previous));
+			// The least recently used result has been forgotten
+			api.getVersion(singletonList(new Bridges("obfs4", "builtin",
+					singletonList("obfs4 y"))));
+			assertNull(api.diff(SnapshotCache.getVersion(emptyList()), previous));
+		}
+	}
+
+	@Test
+	public void testDiffAgainstVersion() {
+		List<Bridges> current = singletonList(
+				new Bridges("obfs4", "builtin", asList("obfs4 a", "obfs4 b", "obfs4 c")));
+		try (MoatApi api = new MoatApi(new File(tempFolder, "lyrebird"), tempFolder,
+				"https://example.com/", "front.example")) {
+			String version = api.getVersion(previous);
+			assertEquals(version, SnapshotCache.getVersion(previous));
+			assertNull(api.diff("unknown", current));
+
+			BridgesDiff diff = api.diff(version, current);
+			assertNotNull(diff);
+			assertEquals(emptyList(), diff.added);
+			assertEquals(1, diff.removed.size());
+			assertNotEquals(version, diff.version);
+
+			// The new version can be used for the next diff
+			BridgesDiff next = api.diff(diff.version, current);
+			assertNotNull(next);
+			assertTrue(next.isEmpty());
+			assertEquals(diff.version, next.version);
+		}
+	}
+
+	@Test
+	public void testDiffBetweenResultsDoesNotRememberResult() {
+		List<Bridges> current = singletonList(
+				new Bridges("obfs4", "builtin", asList("obfs4 a", "obfs4 b", "obfs4 c")));
+		try (MoatApi api = new MoatApi(new File(tempFolder, "lyrebird"), tempFolder,
+				"https://example.com/", "front.example")) {
+			BridgesDiff diff = api.diff(previous, current);
+			assertEquals(SnapshotCache.getVersion(current), diff.version);
+			assertNull(api.diff(diff.version, current));
+		}
+	}
+
+	private void assertBridges(String type, String source, List<String> lines, Bridges b) {
+		assertEquals(type, b.type);
+		assertEquals(source, b.source);
+		assertEquals(lines, b.bridgeStrings);
+	}
+}
@@ -0,0 +1,104 @@
+package org.briarproject.moat;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DiskCacheTest {
+
+	@TempDir
+	private File tempFolder;
+
+	private final List<Bridges> bridges = asList(
+			new Bridges("obfs4", "builtin", asList("obfs4 192.0.2.1:443 cert=a iat-mode=0",
+					"obfs4 192.0.2.2:443 cert=b iat-mode=0")),
+			new Bridges("snowflake", "builtin", emptyList()));
+
+	@Test
+	public void testStoredEntryCanBeLoaded() {
+		DiskCache cache = new DiskCache(new File(tempFolder, "cache"), 1000);
+		cache.store("cn", bridges, 123);
+
+		BridgesCache.Entry entry = cache.load("cn", 1123);
+		assertNotNull(entry);
+		assertEquals(123, entry.timestamp);
+		assertEquals(2, entry.bridges.size());
+		for (int i = 0; i < bridges.size(); i++) {
+			assertEquals(bridges.get(i).type, entry.bridges.get(i).type);
+			assertEquals(bridges.get(i).source, entry.bridges.get(i).source);
+			assertEquals(bridges.get(i).bridgeStrings, entry.bridges.get(i).bridgeStrings);
+		}
+		assertNull(cache.load("ir", 123));
+	}
+
+	@Test
+	public void testExpiredEntryIsDeleted() {
+		File dir = new File(tempFolder, "cache");
+		DiskCache cache = new DiskCache(dir, 1000);
+		cache.store("", bridges, 0);
+		assertEquals(1, list(dir).length);
+
+		assertNull(cache.load("", 1001));
+		assertEquals(0, list(dir).length);
+	}
+
+	@Test
+	public void testTruncatedEntryIsDeleted() throws IOException {
+		File dir = new File(tempFolder, "cache");
+		DiskCache cache = new DiskCache(dir, 1000);
+		cache.store("cn", bridges, 0);
+		File file = list(dir)[0];
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(raf.length() - 1);
+		}
+
+		assertNull(cache.load("cn", 0));
+		assertFalse(file.exists());
+	}
+
+	@Test
+	public void testEntryWithInvalidCountIsDeleted() throws IOException {
+		File dir = new File(tempFolder, "cache");
+		DiskCache cache = new DiskCache(dir, 1000);
+		for (int count : new int[]{-1, Integer.MAX_VALUE}) {
+			cache.store("cn", bridges, 0);
+			File file = list(dir)[0];
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				// Overwrite the number of settings, which follows the header
+				raf.seek(21);
+				raf.writeInt(count);
+			}
+
+			assertNull(cache.load("cn", 0));
+			assertFalse(file.exists());
+		}
+	}
+
+	@Test
+	public void testUnsafeCountryIsNotStored() {
+		File dir = new File(tempFolder, "cache");
+		DiskCache cache = new DiskCache(dir, 1000);
+		cache.store("../cn", bridges, 0);
+
+		assertNull(cache.load("../cn", 0));
+		assertTrue(!dir.exists() || list(dir).length == 0);
+	}
+
+	private File[] list(File dir) {
+		File[] files = dir.listFiles();
+		assertNotNull(files);
+		return files;
+	}
+}
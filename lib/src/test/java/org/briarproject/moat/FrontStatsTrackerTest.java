@@ -0,0 +1,81 @@
+package org.briarproject.moat;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static org.briarproject.moat.FrontStatsTracker.MAX_BACKOFF;
+import static org.briarproject.moat.FrontStatsTracker.MIN_BACKOFF;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class FrontStatsTrackerTest {
+
+	private final DomainFront a = new DomainFront("https://a/", "a.example");
+	private final DomainFront b = new DomainFront("https://b/", "b.example");
+	private final DomainFront c = new DomainFront("https://c/", "c.example");
+	private final FrontStatsTracker tracker = new FrontStatsTracker(asList(a, b, c));
+
+	@Test
+	public void testUnknownFrontsKeepConfiguredOrder() {
+		assertEquals(asList(a, b, c), tracker.getFrontsInOrder(0));
+	}
+
+	@Test
+	public void testFastestFrontIsTriedFirst() {
+		tracker.onSuccess(b, 3000);
+		tracker.onSuccess(c, 1000);
+
+		assertEquals(asList(c, b, a), tracker.getFrontsInOrder(0));
+	}
+
+	@Test
+	public void testLatencyIsAveraged() {
+		tracker.onSuccess(a, 1000);
+		tracker.onSuccess(a, 2000);
+
+		FrontStats stats = tracker.getStats(0).get(0);
+		assertEquals(2, stats.successes);
+		assertEquals(1300, stats.averageLatencyMs);
+	}
+
+	@Test
+	public void testFailingFrontIsBackedOff() {
+		tracker.onSuccess(a, 1000);
+		tracker.onFailure(a, 0);
+
+		// The front is tried last until the backoff expires
+		assertEquals(asList(b, c, a), tracker.getFrontsInOrder(0));
+		assertEquals(asList(a, b, c), tracker.getFrontsInOrder(MIN_BACKOFF + 1));
+
+		FrontStats stats = tracker.getStats(0).get(0);
+		assertEquals(1, stats.failures);
+		assertEquals(1, stats.consecutiveFailures);
+		assertEquals(MIN_BACKOFF, stats.backoffUntil);
+	}
+
+	@Test
+	public void testBackoffDoublesUntilMaximum() {
+		tracker.onFailure(a, 0);
+		tracker.onFailure(a, 0);
+		assertEquals(MIN_BACKOFF * 2, tracker.getStats(0).get(0).backoffUntil);
+		for (int i = 0; i < 100; i++) tracker.onFailure(a, 0);
+		assertEquals(MAX_BACKOFF, tracker.getStats(0).get(0).backoffUntil);
+
+		// A success resets the backoff
+		tracker.onSuccess(a, 1000);
+		FrontStats stats = tracker.getStats(0).get(0);
+		assertEquals(0, stats.consecutiveFailures);
+		assertEquals(0, stats.backoffUntil);
+	}
+
+	@Test
+	public void testBackedOffFrontsAreOrderedByBackoffExpiry() {
+		tracker.onFailure(a, 0);
+		tracker.onFailure(a, 0);
+		tracker.onFailure(b, 0);
+
+		List<DomainFront> ordered = tracker.getFrontsInOrder(0);
+		assertEquals(asList(c, b, a), ordered);
+	}
+}
@@ -0,0 +1,44 @@
+package org.briarproject.moat;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.Future;
+
+import static org.briarproject.moat.Schedulers.IO_EXECUTOR;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class IoExecutorsTest {
+
+	// Set by the build when the tests run against the Java 21 classes
+	private final boolean expectVirtualThreads = Boolean.getBoolean("moat.expectVirtualThreads");
+
+	@Test
+	public void testIoExecutorUsesVirtualThreadsOnlyOnJava21() throws Exception {
+		Future<Thread> f = IO_EXECUTOR.submit(Thread::currentThread);
+		Thread t = f.get();
+		assertTrue(t.isDaemon());
+		assertTrue(t.getName().startsWith("MoatIo"));
+		assertEquals(expectVirtualThreads, isVirtual(t));
+	}
+
+	@Test
+	public void testCallsUseIoExecutorOnlyOnJava21() {
+		if (expectVirtualThreads) {
+			assertSame(IO_EXECUTOR, IoExecutors.getDefaultCallExecutor());
+		} else {
+			assertNull(IoExecutors.getDefaultCallExecutor());
+		}
+	}
+
+	private static boolean isVirtual(Thread t) throws Exception {
+		// Thread#isVirtual() was added in Java 21
+		try {
+			return (Boolean) Thread.class.getMethod("isVirtual").invoke(t);
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+}
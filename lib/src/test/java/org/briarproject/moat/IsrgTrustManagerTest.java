@@ -0,0 +1,39 @@
+package org.briarproject.moat;
+
+import org.junit.jupiter.api.Test;
+
+import java.security.cert.X509Certificate;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public class IsrgTrustManagerTest {
+
+	@Test
+	public void testSharedInstanceIsReused() throws Exception {
+		assertSame(IsrgTrustManager.getInstance(), IsrgTrustManager.getInstance());
+		assertSame(IsrgTrustManager.getSocketFactory(), IsrgTrustManager.getSocketFactory());
+	}
+
+	@Test
+	public void testAcceptedIssuersIncludeIsrgRoot() throws Exception {
+		IsrgTrustManager tm = IsrgTrustManager.getInstance();
+		X509Certificate[] issuers = tm.getAcceptedIssuers();
+		X509Certificate isrg = issuers[issuers.length - 1];
+		assertTrue(isrg.getSubjectX500Principal().getName().contains("ISRG Root X1"));
+		// Callers can't modify the shared array
+		issuers[issuers.length - 1] = null;
+		assertSame(isrg, tm.getAcceptedIssuers()[issuers.length - 1]);
+	}
+
+	@Test
+	public void testMetricsInstanceSharesState() throws Exception {
+		IsrgTrustManager tm = IsrgTrustManager.getInstance();
+		IsrgTrustManager withMetrics = tm.withMetrics(mock(MoatMetrics.class));
+		assertNotSame(tm, withMetrics);
+		assertArrayEquals(tm.getAcceptedIssuers(), withMetrics.getAcceptedIssuers());
+	}
+}
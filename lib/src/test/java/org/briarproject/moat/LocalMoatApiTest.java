@@ -0,0 +1,609 @@
+package org.briarproject.moat;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static java.util.Arrays.asList;
+import static java.util.concurrent.Executors.newCachedThreadPool;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.briarproject.moat.FakeLyrebird.BLACKHOLE_PREFIX;
+import static org.briarproject.moat.FakeLyrebird.UNREACHABLE_PREFIX;
+import static org.briarproject.moat.MoatPhase.LYREBIRD_START;
+import static org.briarproject.moat.MoatPhase.PORT_DISCOVERY;
+import static org.briarproject.moat.MoatPhase.REQUEST;
+import static org.briarproject.moat.MoatPhase.TLS_HANDSHAKE;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+
+/**
+ * Tests {@link MoatApi} against a local {@link MoatServer} through
+ * {@link FakeLyrebird}, so no network access is needed.
+ */
+public class LocalMoatApiTest {
+
+	private static final String URL = "https://meek.example/";
+
+	@TempDir
+	private File tempFolder;
+	private MoatServer server;
+	private File lyrebirdExecutable;
+
+	@BeforeEach
+	public void setup() throws IOException {
+		// The fake lyrebird is launched by a shell script
+		assumeTrue(new File("/bin/sh").exists());
+		server = new MoatServer();
+		lyrebirdExecutable = FakeLyrebird.createExecutable(tempFolder, server.getPort());
+	}
+
+	@AfterEach
+	public void tearDown() {
+		if (server != null) server.close();
+	}
+
+	private MoatApi.Builder builder(String... fronts) {
+		List<DomainFront> domainFronts = new ArrayList<>();
+		for (String front : fronts) domainFronts.add(new DomainFront(URL, front));
+		return new MoatApi.Builder(lyrebirdExecutable, tempFolder, domainFronts)
+				.trustManager(server.getTrustManager());
+	}
+
+	/**
+	 * Creates an executable that never reports a port. The executable writes
+	 * its process ID to {@link #getSilentPidFile()}.
+	 */
+	private File createSilentExecutable() throws IOException {
+		File script = new File(tempFolder, "silent-lyrebird.sh");
+		try (PrintWriter w = new PrintWriter(script, "UTF-8")) {
+			w.println("#!/bin/sh");
+			w.println("echo $$ > " + getSilentPidFile().getAbsolutePath());
+			w.println("exec sleep 60");
+		}
+		if (!script.setExecutable(true)) throw new IOException();
+		return script;
+	}
+
+	private File getSilentPidFile() {
+		return new File(tempFolder, "silent-lyrebird.pid");
+	}
+
+	private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10_000;
+		while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertTrue(condition.getAsBoolean());
+	}
+
+	@Test
+	public void testGetWithCountry() throws Exception {
+		server.setBridgesPerType(3);
+		try (MoatApi api = builder("front.example").build()) {
+			List<Bridges> bridges = api.getWithCountry("cn");
+			assertEquals(2, bridges.size());
+			assertEquals("obfs4", bridges.get(0).type);
+			assertEquals("builtin", bridges.get(0).source);
+			assertEquals(asList(MoatServer.createBridgeLine("obfs4", "cn", 0),
+					MoatServer.createBridgeLine("obfs4", "cn", 1),
+					MoatServer.createBridgeLine("obfs4", "cn", 2)),
+					bridges.get(0).bridgeStrings);
+			assertEquals("snowflake", bridges.get(1).type);
+			// The server returns no settings for this country
+			assertTrue(api.getWithCountry("us").isEmpty());
+		}
+		assertEquals(2, server.getRequestCount());
+	}
+
+	@Test
+	public void testConsecutiveRequestsReuseConnection() throws Exception {
+		MoatMetrics metrics = mock(MoatMetrics.class);
+		try (MoatApi api = builder("front.example").metrics(metrics).build()) {
+			for (String country : asList("cn", "ir", "ru")) {
+				assertEquals(2, api.getWithCountry(country).size());
+			}
+		}
+		assertEquals(3, server.getRequestCount());
+		assertEquals(1, server.getConnectionCount());
+		verify(metrics, times(1)).onPhaseCompleted(eq(LYREBIRD_START), anyLong());
+		verify(metrics, times(1)).onPhaseCompleted(eq(TLS_HANDSHAKE), anyLong());
+		verify(metrics, times(3)).onPhaseCompleted(eq(REQUEST), anyLong());
+	}
+
+	@Test
+	public void testConcurrentRequests() throws Exception {
+		server.setDelay(100);
+		ExecutorService executor = newFixedThreadPool(8);
+		try (MoatApi api = builder("front.example").build()) {
+			List<Future<List<Bridges>>> results = new ArrayList<>();
+			for (int i = 0; i < 16; i++) {
+				String country = "c" + i;
+				results.add(executor.submit(() -> api.getWithCountry(country)));
+			}
+			for (Future<List<Bridges>> f : results) assertEquals(2, f.get().size());
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals(16, server.getRequestCount());
+	}
+
+	@Test
+	public void testConcurrentRequestsForSameCountryAreCoalesced() throws Exception {
+		server.setDelay(100);
+		try (MoatApi api = builder("front.example").build()) {
+			List<BlockingCallback<List<Bridges>>> callbacks = new ArrayList<>();
+			List<MoatCall> calls = new ArrayList<>();
+			for (int i = 0; i < 16; i++) {
+				BlockingCallback<List<Bridges>> callback = new BlockingCallback<>();
+				callbacks.add(callback);
+				calls.add(api.getAsync(i % 2 == 0 ? "cn" : "ir", callback));
+			}
+			for (int i = 0; i < 16; i++) {
+				assertEquals(2, callbacks.get(i).await(calls.get(i)).size());
+			}
+			// Later requests aren't coalesced with completed ones
+			assertEquals(2, api.getWithCountry("cn").size());
+		}
+		assertEquals(3, server.getRequestCount());
+	}
+
+	@Test
+	public void testLyrebirdLimiterStopsIdleProcessOfAnotherInstance() throws Exception {
+		LyrebirdLimiter limiter = new LyrebirdLimiter(1);
+		try (MoatApi api1 = builder("front.example").lyrebirdLimiter(limiter).build();
+				MoatApi api2 = builder("front.example").lyrebirdLimiter(limiter).build()) {
+			// The first instance keeps its process running while idle, until
+			// the second instance needs a process
+			assertEquals(2, api1.getWithCountry("cn").size());
+			assertEquals(1, limiter.getProcesses());
+			assertEquals(2, api2.getWithCountry("cn").size());
+			assertEquals(2, api1.getWithCountry("ir").size());
+			assertEquals(1, limiter.getProcesses());
+		}
+	}
+
+	@Test
+	public void testLyrebirdLimiterWaitsForBusyProcess() throws Exception {
+		server.setDelay(1000, 1);
+		LyrebirdLimiter limiter = new LyrebirdLimiter(1);
+		ExecutorService executor = newFixedThreadPool(1);
+		try (MoatApi api1 = builder("front.example").lyrebirdLimiter(limiter).build();
+				MoatApi api2 = builder("front.example").lyrebirdLimiter(limiter).build()) {
+			Future<List<Bridges>> slow = executor.submit(() -> api1.getWithCountry("cn"));
+			waitFor(() -> server.getRequestCount() == 1);
+			// The second instance waits for the first instance's process to
+			// become idle and exit
+			assertEquals(2, api2.getWithCountry("ir").size());
+			assertEquals(2, slow.get().size());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testLyrebirdLimiterTimesOutWaitingForBusyProcess() throws Exception {
+		server.setDelay(5000, 1);
+		LyrebirdLimiter limiter = new LyrebirdLimiter(1);
+		ExecutorService executor = newFixedThreadPool(1);
+		try (MoatApi api1 = builder("front.example").lyrebirdLimiter(limiter).build();
+				MoatApi api2 = builder("front.example").lyrebirdLimiter(limiter)
+						.startupTimeout(500, MILLISECONDS)
+						.build()) {
+			executor.submit(() -> api1.getWithCountry("cn"));
+			waitFor(() -> server.getRequestCount() == 1);
+			assertThrows(LyrebirdException.class, () -> api2.getWithCountry("ir"));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testInstancesThatAreNotClosedDoNotExhaustProcesses() throws Exception {
+		// Older code created an instance per request and never closed it
+		for (int i = 0; i < 12; i++) {
+			MoatApi api = builder("front.example").idleTimeout(1, SECONDS).build();
+			assertEquals(2, api.getWithCountry("cn").size());
+		}
+	}
+
+	@Test
+	public void testGetForCountriesOmitsFailedCountries() throws Exception {
+		// Requests are made one at a time, so only the first one fails
+		server.setFailures(1, 503);
+		try (MoatApi api = builder("front.example").build()) {
+			Map<String, List<Bridges>> results =
+					api.getForCountries(asList("cn", "ir", "cn", "ru"), 1);
+			assertEquals(asList("ir", "ru"), new ArrayList<>(results.keySet()));
+			assertEquals(MoatServer.createBridgeLine("obfs4", "ru", 0),
+					results.get("ru").get(0).bridgeStrings.get(0));
+		}
+		assertEquals(3, server.getRequestCount());
+	}
+
+	@Test
+	public void testGetForCountriesLimitsParallelRequests() throws Exception {
+		server.setDelay(200);
+		List<String> countries = asList("c0", "c1", "c2", "c3", "c4", "c5");
+		try (MoatApi api = builder("front.example").build()) {
+			assertEquals(countries, new ArrayList<>(api.getForCountries(countries, 2).keySet()));
+		}
+		assertEquals(6, server.getRequestCount());
+		assertTrue(server.getMaxConcurrentRequests() <= 2);
+	}
+
+	@Test
+	public void testGetForCountriesThrowsIfAllCountriesFail() throws Exception {
+		server.setFailures(3, 400);
+		try (MoatApi api = builder("front.example").build()) {
+			assertThrows(HttpStatusException.class,
+					() -> api.getForCountries(asList("cn", "ir", "ru"), 2));
+		}
+		assertEquals(3, server.getRequestCount());
+	}
+
+	@Test
+	public void testMapBuiltinAndCountries() throws Exception {
+		try (MoatApi api = builder("front.example").build()) {
+			Map<String, List<Bridges>> map = api.getMap();
+			assertEquals(MoatServer.COUNTRIES, new ArrayList<>(map.keySet()));
+			assertEquals(MoatServer.createBridgeLine("obfs4", "ir", 1),
+					map.get("ir").get(0).bridgeStrings.get(1));
+
+			List<Bridges> builtin = api.getBuiltin();
+			assertEquals(2, builtin.size());
+			assertEquals("snowflake", builtin.get(1).type);
+			assertEquals("builtin", builtin.get(1).source);
+			assertEquals(2, builtin.get(1).bridgeStrings.size());
+
+			assertEquals(MoatServer.COUNTRIES, api.getCountries());
+		}
+		assertEquals(3, server.getRequestCount());
+	}
+
+	@Test
+	public void testPrefetchAllFillsCache() throws Exception {
+		try (MoatApi api = builder("front.example").cache(16, 1, 1, HOURS).build()) {
+			Map<String, List<Bridges>> map = api.prefetchAll();
+			for (String country : MoatServer.COUNTRIES) {
+				assertSame(map.get(country), api.getWithCountry(country));
+			}
+		}
+		assertEquals(1, server.getRequestCount());
+	}
+
+	@Test
+	public void testStaleResultIsServedWhileRefreshing() throws Exception {
+		try (MoatApi api = builder("front.example")
+				.cache(16, 200, HOURS.toMillis(1), MILLISECONDS)
+				.build()) {
+			assertEquals(2, getLineCount(api.getWithCountry("cn")));
+			// A fresh result is passed to the callback before getAsync() returns
+			MoatCallback callback = mock(MoatCallback.class);
+			api.getAsync("cn", callback);
+			verify(callback).onResponse(argThat(b -> getLineCount(b) == 2));
+			assertEquals(1, server.getRequestCount());
+
+			Thread.sleep(300);
+			server.setBridgesPerType(3);
+			// The stale result is passed to the callback and refreshed
+			callback = mock(MoatCallback.class);
+			api.getAsync("cn", callback);
+			verify(callback).onResponse(argThat(b -> getLineCount(b) == 2));
+			waitFor(() -> server.getRequestCount() == 2);
+			// The callback isn't called again with the refreshed result
+			verify(callback, after(500).times(1)).onResponse(any());
+			assertEquals(3, getLineCount(api.getWithCountry("cn")));
+		}
+		assertEquals(2, server.getRequestCount());
+	}
+
+	@Test
+	public void testColdStartServesResultFromDisk() throws Exception {
+		try (MoatApi api = builder("front.example")
+				.cache(16, 200, HOURS.toMillis(1), MILLISECONDS)
+				.diskCache(1, HOURS)
+				.build()) {
+			assertEquals(2, getLineCount(api.getWithCountry("cn")));
+		}
+		Thread.sleep(300);
+		server.setBridgesPerType(3);
+		// After a restart, the stored result is served without waiting for
+		// lyrebird, and refreshed in the background as it's stale
+		MoatMetrics metrics = mock(MoatMetrics.class);
+		try (MoatApi api = builder("front.example")
+				.cache(16, 200, HOURS.toMillis(1), MILLISECONDS)
+				.diskCache(1, HOURS)
+				.metrics(metrics)
+				.build()) {
+			MoatCallback callback = mock(MoatCallback.class);
+			api.getAsync("cn", callback);
+			verify(callback, timeout(10_000)).onResponse(argThat(b -> getLineCount(b) == 2));
+			verify(metrics, never()).onPhaseCompleted(eq(PORT_DISCOVERY), anyLong());
+			waitFor(() -> server.getRequestCount() == 2);
+			verify(metrics, timeout(10_000)).onPhaseCompleted(eq(REQUEST), anyLong());
+			waitFor(() -> {
+				try {
+					return getLineCount(api.getWithCountry("cn")) == 3;
+				} catch (IOException e) {
+					throw new AssertionError(e);
+				}
+			});
+		}
+		assertEquals(2, server.getRequestCount());
+	}
+
+	@Test
+	public void testColdStartDoesNotServeExpiredResultFromDisk() throws Exception {
+		try (MoatApi api = builder("front.example")
+				.cache(16, 100, 100, MILLISECONDS)
+				.diskCache(1, HOURS)
+				.build()) {
+			assertEquals(2, getLineCount(api.getWithCountry("cn")));
+		}
+		Thread.sleep(300);
+		server.setBridgesPerType(3);
+		// The stored result is older than the cache's TTL plus its maximum
+		// staleness, so the caller waits for a fresh result
+		try (MoatApi api = builder("front.example")
+				.cache(16, 100, 100, MILLISECONDS)
+				.diskCache(1, HOURS)
+				.build()) {
+			assertEquals(3, getLineCount(api.getWithCountry("cn")));
+		}
+		assertEquals(2, server.getRequestCount());
+	}
+
+	private static int getLineCount(List<Bridges> bridges) {
+		return bridges.get(0).bridgeStrings.size();
+	}
+
+	@Test
+	public void testCallsRunOnGivenExecutor() throws Exception {
+		AtomicInteger threads = new AtomicInteger();
+		ExecutorService executor = newCachedThreadPool(r -> {
+			threads.incrementAndGet();
+			return new Thread(r);
+		});
+		try (MoatApi api = builder("front.example").executor(executor).build()) {
+			assertEquals(2, api.getWithCountry("cn").size());
+		} finally {
+			executor.shutdown();
+		}
+		assertTrue(threads.get() > 0);
+	}
+
+	@Test
+	public void testRaceSkipsBadFronts() throws Exception {
+		try (MoatApi api = builder(UNREACHABLE_PREFIX, BLACKHOLE_PREFIX, "front.example")
+				.raceDelay(500, MILLISECONDS)
+				.build()) {
+			assertEquals(2, api.getWithCountry("cn").size());
+			List<FrontStats> stats = api.getFrontStats();
+			assertEquals(1, stats.get(0).failures);
+			assertEquals(1, stats.get(2).successes);
+		}
+	}
+
+	@Test
+	public void testClientSetupFailureFailsWholeRace() throws Exception {
+		MoatApi api = spy(builder("front.example", "front.example")
+				.retryPolicy(new RetryPolicy.Builder().maxRetries(2).build())
+				.build());
+		try {
+			ClientSetupException failure =
+					new ClientSetupException(new GeneralSecurityException());
+			doThrow(failure).when(api).createBaseClient();
+			assertSame(failure, assertThrows(IOException.class,
+					() -> api.getWithCountry("cn")));
+			// The other front wasn't tried and the request wasn't retried
+			verify(api, times(1)).createBaseClient();
+			for (FrontStats stats : api.getFrontStats()) assertEquals(0, stats.failures);
+		} finally {
+			api.close();
+		}
+	}
+
+	@Test
+	public void testPrewarmStartsLyrebirdBeforeFirstRequest() throws Exception {
+		MoatMetrics metrics = mock(MoatMetrics.class);
+		try (MoatApi api = builder("front.example").metrics(metrics).prewarm(true).build()) {
+			verify(metrics, timeout(10_000)).onPhaseCompleted(eq(PORT_DISCOVERY), anyLong());
+			assertEquals(2, api.getWithCountry("cn").size());
+			assertEquals(2, api.getWithCountry("ir").size());
+		}
+		verify(metrics, times(1)).onPhaseCompleted(eq(LYREBIRD_START), anyLong());
+	}
+
+	@Test
+	public void testZeroIdleTimeoutStopsLyrebirdAfterEachRequest() throws Exception {
+		MoatMetrics metrics = mock(MoatMetrics.class);
+		try (MoatApi api = builder("front.example").metrics(metrics)
+				.idleTimeout(0, MILLISECONDS)
+				.build()) {
+			assertEquals(2, api.getWithCountry("cn").size());
+			assertEquals(2, api.getWithCountry("ir").size());
+		}
+		verify(metrics, times(2)).onPhaseCompleted(eq(LYREBIRD_START), anyLong());
+	}
+
+	@Test
+	public void testCancelDestroysStartingLyrebird() throws Exception {
+		// The process is found by its PID
+		assumeTrue(new File("/proc/self").exists());
+		MoatCallback callback = mock(MoatCallback.class);
+		try (MoatApi api = new MoatApi.Builder(createSilentExecutable(), tempFolder,
+				URL, "front.example").build()) {
+			MoatCall call = api.getAsync("cn", callback);
+			File pidFile = getSilentPidFile();
+			waitFor(() -> pidFile.length() > 0);
+			String pid = new String(Files.readAllBytes(pidFile.toPath()), "UTF-8").trim();
+			File proc = new File("/proc/" + pid);
+			assertTrue(proc.exists());
+
+			call.cancel();
+			assertTrue(call.isCanceled());
+			waitFor(() -> !proc.exists());
+		}
+		verifyNoInteractions(callback);
+	}
+
+	@Test
+	public void testCancelInFlightRequest() throws Exception {
+		server.setDelay(1000);
+		MoatCallback callback = mock(MoatCallback.class);
+		try (MoatApi api = builder("front.example").build()) {
+			MoatCall call = api.getAsync("cn", callback);
+			waitFor(() -> server.getRequestCount() == 1);
+			call.cancel();
+			assertTrue(call.isCanceled());
+			// Wait until the server has responded
+			verify(callback, after(2000).never()).onResponse(any());
+			verify(callback, never()).onFailure(any());
+			// The API can still be used
+			server.setDelay(0);
+			assertEquals(2, api.getWithCountry("cn").size());
+		}
+	}
+
+	@Test
+	public void testCallTimeoutCancelsSlowRequest() throws Exception {
+		server.setDelay(5000);
+		try (MoatApi api = builder("front.example").callTimeout(500, MILLISECONDS).build()) {
+			long start = System.currentTimeMillis();
+			assertThrows(InterruptedIOException.class, () -> api.getWithCountry("cn"));
+			assertTrue(System.currentTimeMillis() - start < 4000);
+		}
+	}
+
+	@Test
+	public void testCallTimeoutCancelsLyrebirdStartup() throws Exception {
+		try (MoatApi api = new MoatApi.Builder(createSilentExecutable(), tempFolder,
+				URL, "front.example")
+				.callTimeout(500, MILLISECONDS)
+				.build()) {
+			assertThrows(InterruptedIOException.class, () -> api.getWithCountry("cn"));
+		}
+	}
+
+	@Test
+	public void testStartupTimeout() throws Exception {
+		try (MoatApi api = new MoatApi.Builder(createSilentExecutable(), tempFolder,
+				URL, "front.example")
+				.startupTimeout(500, MILLISECONDS)
+				.build()) {
+			assertThrows(LyrebirdException.class, () -> api.getWithCountry("cn"));
+		}
+	}
+
+	@Test
+	public void testServerErrorIsRetried() throws Exception {
+		server.setFailures(2, 503);
+		RetryPolicy policy = new RetryPolicy.Builder()
+				.maxRetries(2)
+				.backoff(10, 100, MILLISECONDS)
+				.build();
+		try (MoatApi api = builder("front.example").retryPolicy(policy).build()) {
+			assertEquals(2, api.getWithCountry("cn").size());
+		}
+		assertEquals(3, server.getRequestCount());
+	}
+
+	@Test
+	public void testServerErrorIsNotRetriedByDefault() throws Exception {
+		server.setFailures(1, 503);
+		try (MoatApi api = builder("front.example").build()) {
+			HttpStatusException e = assertThrows(HttpStatusException.class,
+					() -> api.getWithCountry("cn"));
+			assertEquals(503, e.getCode());
+		}
+		assertEquals(1, server.getRequestCount());
+	}
+
+	@Test
+	public void testClientErrorIsNotRetried() throws Exception {
+		server.setFailures(1, 400);
+		RetryPolicy policy = new RetryPolicy.Builder()
+				.maxRetries(2)
+				.backoff(10, 100, MILLISECONDS)
+				.build();
+		try (MoatApi api = builder("front.example").retryPolicy(policy).build()) {
+			assertThrows(HttpStatusException.class, () -> api.getWithCountry("cn"));
+		}
+		assertEquals(1, server.getRequestCount());
+	}
+
+	@Test
+	public void testHedgedAttemptOvertakesSlowRequest() throws Exception {
+		// Only the first request is slow
+		server.setDelay(5000, 1);
+		RetryPolicy policy = new RetryPolicy.Builder().maxHedges(1).build();
+		try (MoatApi api = builder("front.example")
+				.raceDelay(200, MILLISECONDS)
+				.retryPolicy(policy)
+				.build()) {
+			long start = System.currentTimeMillis();
+			assertEquals(2, api.getWithCountry("cn").size());
+			assertTrue(System.currentTimeMillis() - start < 4000);
+		}
+		assertEquals(2, server.getRequestCount());
+	}
+
+	@Test
+	public void testLyrebirdFailureIsNotRetriedThroughEachFront() throws Exception {
+		MoatMetrics metrics = mock(MoatMetrics.class);
+		List<DomainFront> fronts = asList(new DomainFront(URL, "front1.example"),
+				new DomainFront(URL, "front2.example"), new DomainFront(URL, "front3.example"));
+		try (MoatApi api = new MoatApi.Builder(createSilentExecutable(), tempFolder, fronts)
+				.startupTimeout(500, MILLISECONDS)
+				.metrics(metrics)
+				.build()) {
+			long start = System.currentTimeMillis();
+			assertThrows(LyrebirdException.class, () -> api.getWithCountry("cn"));
+			assertTrue(System.currentTimeMillis() - start < 1500);
+		}
+		verify(metrics, times(1)).onPhaseCompleted(eq(LYREBIRD_START), anyLong());
+		verify(metrics, times(1)).onPhaseFailed(eq(PORT_DISCOVERY), any());
+	}
+
+	@Test
+	public void testAllFrontsUnreachable() throws Exception {
+		try (MoatApi api = builder(UNREACHABLE_PREFIX + "1", UNREACHABLE_PREFIX + "2").build()) {
+			assertThrows(IOException.class, () -> api.getWithCountry("cn"));
+		}
+		assertEquals(0, server.getRequestCount());
+	}
+}
@@ -0,0 +1,95 @@
+package org.briarproject.moat;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class LyrebirdTest {
+
+	private final BlockingQueue<Object> results = new LinkedBlockingQueue<>();
+
+	private final Lyrebird.PortListener listener = new Lyrebird.PortListener() {
+		@Override
+		public void onPort(Lyrebird lyrebird, int port) {
+			results.add(port);
+		}
+
+		@Override
+		public void onPortFailure(Lyrebird lyrebird, IOException e) {
+			results.add(e);
+		}
+
+		@Override
+		public void onExit(Lyrebird lyrebird) {
+		}
+	};
+
+	@Test
+	public void testPortIsReported() throws Exception {
+		start("VERSION 1\nCMETHOD meek_lite socks5 127.0.0.1:1234\nCMETHODS DONE\n",
+				MINUTES.toMillis(1));
+		assertEquals(1234, results.poll(10, SECONDS));
+		// Nothing else is reported when the process exits
+		assertNull(results.poll(100, MILLISECONDS));
+	}
+
+	@Test
+	public void testErrorIsReported() throws Exception {
+		start("VERSION 1\nCMETHOD-ERROR meek_lite broken\n", MINUTES.toMillis(1));
+		Object result = results.poll(10, SECONDS);
+		assertTrue(result instanceof LyrebirdException);
+		assertEquals("CMETHOD-ERROR meek_lite broken", ((IOException) result).getMessage());
+		assertNull(results.poll(100, MILLISECONDS));
+	}
+
+	@Test
+	public void testMissingPortIsReported() throws Exception {
+		start("VERSION 1\nCMETHODS DONE\n", MINUTES.toMillis(1));
+		assertTrue(results.poll(10, SECONDS) instanceof LyrebirdException);
+		assertNull(results.poll(100, MILLISECONDS));
+	}
+
+	@Test
+	public void testExitIsReported() throws Exception {
+		start("VERSION 1\n", MINUTES.toMillis(1));
+		assertTrue(results.poll(10, SECONDS) instanceof LyrebirdException);
+	}
+
+	@Test
+	public void testTimeoutIsReported() throws Exception {
+		PipedOutputStream out = new PipedOutputStream();
+		try (PipedInputStream in = new PipedInputStream(out)) {
+			start(in, 100);
+			assertTrue(results.poll(10, SECONDS) instanceof LyrebirdException);
+			// A port printed after the timeout isn't reported
+			out.write("CMETHOD meek_lite socks5 127.0.0.1:1234\n".getBytes("UTF-8"));
+			out.close();
+			assertNull(results.poll(100, MILLISECONDS));
+		}
+	}
+
+	private void start(String output, long timeoutMs) throws Exception {
+		start(new ByteArrayInputStream(output.getBytes("UTF-8")), timeoutMs);
+	}
+
+	private void start(InputStream output, long timeoutMs) {
+		Process process = mock(Process.class);
+		when(process.getInputStream()).thenReturn(output);
+		new Lyrebird(process, System.nanoTime()).startReading(timeoutMs, listener);
+	}
+}
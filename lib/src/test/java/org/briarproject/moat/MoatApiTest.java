@@ -9,10 +9,16 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import static java.util.Collections.emptyList;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
@@ -40,8 +46,11 @@ public class MoatApiTest {
 	private void testCn(String url, String[] fronts) throws Exception {
 		for (String front : fronts) {
 			for (boolean isrg : new boolean[]{true, false}) {
-				MoatApi moatApi = new MoatApi(lyrebirdExecutable, tempFolder, url, front, isrg);
-				List<Bridges> bridges = moatApi.getWithCountry("cn");
+				List<Bridges> bridges;
+				try (MoatApi moatApi =
+						     new MoatApi(lyrebirdExecutable, tempFolder, url, front, isrg)) {
+					bridges = moatApi.getWithCountry("cn");
+				}
 				boolean anyObfs4 = false, anySnowflake = false;
 				for (Bridges b : bridges) {
 					if (b.type.equals("obfs4")) anyObfs4 = true;
@@ -53,6 +62,41 @@ public class MoatApiTest {
 		}
 	}
 
+	@Test
+	public void testCnCdn77Async() throws Exception {
+		try (MoatApi moatApi =
+				     new MoatApi(lyrebirdExecutable, tempFolder, CDN77_URL, CDN77_FRONTS[0])) {
+			BlockingQueue<Object> result = new LinkedBlockingQueue<>();
+			moatApi.getAsync("cn", new MoatCallback() {
+				@Override
+				public void onResponse(List<Bridges> bridges) {
+					result.add(bridges);
+				}
+
+				@Override
+				public void onFailure(IOException e) {
+					result.add(e);
+				}
+			});
+			Object o = result.poll(3, MINUTES);
+			if (!(o instanceof List)) fail(String.valueOf(o));
+			assertFalse(((List<?>) o).isEmpty());
+		}
+	}
+
+	@Test
+	public void testCnCdn77RaceFronts() throws Exception {
+		List<DomainFront> fronts = new ArrayList<>();
+		// A front that can't be reached should lose the race
+		fronts.add(new DomainFront(CDN77_URL, "unreachable.invalid"));
+		for (String front : CDN77_FRONTS) fronts.add(new DomainFront(CDN77_URL, front));
+		try (MoatApi moatApi = new MoatApi.Builder(lyrebirdExecutable, tempFolder, fronts)
+				.raceDelay(1, SECONDS)
+				.build()) {
+			assertFalse(moatApi.getWithCountry("cn").isEmpty());
+		}
+	}
+
 	@Test
 	public void testUsCdn77() throws Exception {
 		testUs(CDN77_URL, CDN77_FRONTS);
@@ -62,8 +106,10 @@ public class MoatApiTest {
 	private void testUs(String url, String[] fronts) throws Exception {
 		for (String front : fronts) {
 			for (boolean isrg : new boolean[]{true, false}) {
-				MoatApi moatApi = new MoatApi(lyrebirdExecutable, tempFolder, url, front, isrg);
-				assertEquals(emptyList(), moatApi.getWithCountry("us"));
+				try (MoatApi moatApi =
+						     new MoatApi(lyrebirdExecutable, tempFolder, url, front, isrg)) {
+					assertEquals(emptyList(), moatApi.getWithCountry("us"));
+				}
 			}
 		}
 	}
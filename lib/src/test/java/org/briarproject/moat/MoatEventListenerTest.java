@@ -0,0 +1,69 @@
+package org.briarproject.moat;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+
+import okhttp3.Call;
+
+import static org.briarproject.moat.MoatPhase.REQUEST;
+import static org.briarproject.moat.MoatPhase.SOCKS_CONNECT;
+import static org.briarproject.moat.MoatPhase.TLS_HANDSHAKE;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+public class MoatEventListenerTest {
+
+	private final MoatMetrics metrics = mock(MoatMetrics.class);
+	private final Call call = mock(Call.class);
+	private final InetSocketAddress address = InetSocketAddress.createUnresolved("x", 443);
+	private final MoatEventListener listener = new MoatEventListener(metrics);
+
+	@Test
+	public void testPhasesAreReported() {
+		listener.connectStart(call, address, Proxy.NO_PROXY);
+		listener.secureConnectStart(call);
+		listener.secureConnectEnd(call, null);
+		listener.connectEnd(call, address, Proxy.NO_PROXY, null);
+		listener.requestHeadersStart(call);
+		listener.responseHeadersEnd(call, null);
+
+		verify(metrics).onPhaseCompleted(eq(SOCKS_CONNECT), anyLong());
+		verify(metrics).onPhaseCompleted(eq(TLS_HANDSHAKE), anyLong());
+		verify(metrics).onPhaseCompleted(eq(REQUEST), anyLong());
+		verifyNoMoreInteractions(metrics);
+	}
+
+	@Test
+	public void testConnectFailuresAreAttributedToPhase() {
+		IOException e = new IOException();
+		listener.connectStart(call, address, Proxy.NO_PROXY);
+		listener.connectFailed(call, address, Proxy.NO_PROXY, null, e);
+		listener.connectStart(call, address, Proxy.NO_PROXY);
+		listener.secureConnectStart(call);
+		listener.connectFailed(call, address, Proxy.NO_PROXY, null, e);
+		listener.callFailed(call, e);
+
+		verify(metrics).onPhaseFailed(SOCKS_CONNECT, e);
+		verify(metrics).onPhaseFailed(TLS_HANDSHAKE, e);
+		verify(metrics).onPhaseCompleted(eq(SOCKS_CONNECT), anyLong());
+		verifyNoMoreInteractions(metrics);
+	}
+
+	@Test
+	public void testCancelledCallsAreNotFailures() {
+		when(call.isCanceled()).thenReturn(true);
+		listener.requestHeadersStart(call);
+		listener.callFailed(call, new IOException());
+
+		verify(metrics, never()).onPhaseFailed(any(), any());
+	}
+}
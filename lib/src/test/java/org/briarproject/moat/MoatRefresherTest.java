@@ -0,0 +1,162 @@
+package org.briarproject.moat;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class MoatRefresherTest {
+
+	private final List<Bridges> first = asList(
+			new Bridges("obfs4", "builtin", asList("obfs4 a", "obfs4 b")),
+			new Bridges("snowflake", "builtin", singletonList("snowflake a")));
+	private final List<Bridges> reordered = asList(
+			new Bridges("snowflake", "builtin", singletonList("snowflake a")),
+			new Bridges("obfs4", "builtin", asList("obfs4 b", "obfs4 a")));
+	private final List<Bridges> changed = singletonList(
+			new Bridges("obfs4", "builtin", asList("obfs4 b", "obfs4 c")));
+
+	@TempDir
+	private File tempFolder;
+	private MoatApi api;
+	private MoatRefresher refresher;
+
+	@BeforeEach
+	public void setup() {
+		// Lyrebird isn't started, as upstream requests are stubbed
+		api = spy(new MoatApi(new File(tempFolder, "lyrebird"), tempFolder,
+				"https://example.com/", "front.example"));
+	}
+
+	@AfterEach
+	public void tearDown() {
+		if (refresher != null) refresher.close();
+		api.close();
+	}
+
+	@Test
+	public void testDelaysUseRefreshAheadBackoffAndJitter() {
+		refresher = new MoatRefresher.Builder(api, singletonList("cn"), 1000, MILLISECONDS)
+				.refreshAhead(0.5)
+				.jitter(0.2)
+				.backoff(10, 100, MILLISECONDS)
+				.startSpread(1000, MILLISECONDS)
+				.build();
+
+		assertEquals(0, refresher.getInitialDelay(0));
+		assertEquals(500, refresher.getInitialDelay(0.5));
+		assertEquals(1000, refresher.getInitialDelay(1));
+
+		assertEquals(400, refresher.getDelay(0, 0));
+		assertEquals(500, refresher.getDelay(0, 0.5));
+		assertEquals(600, refresher.getDelay(0, 1));
+		assertEquals(10, refresher.getDelay(1, 0.5));
+		assertEquals(20, refresher.getDelay(2, 0.5));
+		assertEquals(80, refresher.getDelay(4, 0.5));
+		assertEquals(100, refresher.getDelay(5, 0.5));
+		assertEquals(120, refresher.getDelay(1000, 1));
+	}
+
+	@Test
+	public void testNotifiesOnlyWhenContentChanges() {
+		AtomicInteger calls = new AtomicInteger();
+		doAnswer(invocation -> {
+			int call = calls.getAndIncrement();
+			ResultCallback<List<Bridges>> callback = invocation.getArgument(1);
+			callback.onResult(call == 0 ? first : call < 3 ? reordered : changed);
+			return mock(MoatCall.class);
+		}).when(api).getFresh(anyString(), any());
+		MoatRefresher.Listener listener = mock(MoatRefresher.Listener.class);
+		refresher = new MoatRefresher.Builder(api, singletonList("CN"), 10, MILLISECONDS)
+				.refreshAhead(1)
+				.jitter(0)
+				.startSpread(0, MILLISECONDS)
+				.build();
+		refresher.addListener(listener);
+		refresher.start();
+
+		verify(api, timeout(10_000).atLeast(6)).getFresh(eq("cn"), any());
+		ArgumentCaptor<BridgesDiff> diffs = ArgumentCaptor.forClass(BridgesDiff.class);
+		verify(listener, times(2)).onBridgesChanged(eq("cn"), any(), diffs.capture());
+		BridgesDiff initial = diffs.getAllValues().get(0);
+		assertEquals(2, initial.added.size());
+		assertEquals(emptyList(), initial.removed);
+		BridgesDiff update = diffs.getAllValues().get(1);
+		assertEquals(singletonList("obfs4 c"), update.added.get(0).bridgeStrings);
+		assertEquals(2, update.removed.size());
+		assertSame(changed, refresher.getLatest("cn"));
+		// Refreshes don't fill the API's snapshots
+		assertEquals(SnapshotCache.getVersion(changed), update.version);
+		assertNull(api.diff(update.version, changed));
+	}
+
+	@Test
+	public void testRetriesAfterFailure() {
+		AtomicInteger calls = new AtomicInteger();
+		doAnswer(invocation -> {
+			ResultCallback<List<Bridges>> callback = invocation.getArgument(1);
+			if (calls.getAndIncrement() < 3) callback.onFailure(new IOException());
+			else callback.onResult(first);
+			return mock(MoatCall.class);
+		}).when(api).getFresh(anyString(), any());
+		MoatRefresher.Listener listener = mock(MoatRefresher.Listener.class);
+		refresher = new MoatRefresher.Builder(api, singletonList("cn"), 1, MINUTES)
+				.backoff(1, 10, MILLISECONDS)
+				.startSpread(0, MILLISECONDS)
+				.build();
+		refresher.addListener(listener);
+		assertNull(refresher.getLatest("cn"));
+		refresher.start();
+
+		verify(listener, timeout(10_000)).onBridgesChanged(eq("cn"), eq(first), any());
+		assertEquals(4, calls.get());
+		assertSame(first, refresher.getLatest("cn"));
+	}
+
+	@Test
+	public void testLimitsConcurrentRefreshes() throws Exception {
+		List<ResultCallback<List<Bridges>>> callbacks = new CopyOnWriteArrayList<>();
+		doAnswer(invocation -> {
+			callbacks.add(invocation.getArgument(1));
+			return mock(MoatCall.class);
+		}).when(api).getFresh(anyString(), any());
+		refresher = new MoatRefresher.Builder(api, asList("cn", "ir", "ru"), 1, MINUTES)
+				.startSpread(0, MILLISECONDS)
+				.maxConcurrentRefreshes(2)
+				.build();
+		refresher.start();
+
+		verify(api, timeout(10_000).times(2)).getFresh(anyString(), any());
+		// The third refresh waits for one of the others to finish
+		Thread.sleep(100);
+		verify(api, times(2)).getFresh(anyString(), any());
+		callbacks.get(0).onResult(first);
+		verify(api, timeout(10_000).times(3)).getFresh(anyString(), any());
+	}
+}
@@ -0,0 +1,140 @@
+package org.briarproject.moat;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static org.briarproject.moat.ResponseParser.parseResponse;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class ResponseParserTest {
+
+	@Test
+	public void testParsesSettings() throws IOException {
+		List<Bridges> bridges = parse("{\"settings\": [" +
+				"{\"bridges\": {\"type\": \"obfs4\", \"source\": \"builtin\", " +
+				"\"bridge_strings\": [\"obfs4 192.0.2.1:443 cert=a\", " +
+				"\"obfs4 192.0.2.2:443 cert=b\"]}}, " +
+				"{\"bridges\": {\"type\": \"snowflake\", \"source\": \"bridgedb\", " +
+				"\"bridge_strings\": [\"snowflake 192.0.2.3:80\"]}}" +
+				"], \"country\": \"cn\"}");
+
+		assertEquals(2, bridges.size());
+		assertEquals("obfs4", bridges.get(0).type);
+		assertEquals("builtin", bridges.get(0).source);
+		assertEquals(asList("obfs4 192.0.2.1:443 cert=a", "obfs4 192.0.2.2:443 cert=b"),
+				bridges.get(0).bridgeStrings);
+		assertEquals("snowflake", bridges.get(1).type);
+		assertEquals("bridgedb", bridges.get(1).source);
+		assertEquals(asList("snowflake 192.0.2.3:80"), bridges.get(1).bridgeStrings);
+	}
+
+	@Test
+	public void testDeduplicatesStringsAcrossResponses() throws IOException {
+		String json = "{\"settings\": [{\"bridges\": {\"type\": \"obfs4\", " +
+				"\"source\": \"builtin\", \"bridge_strings\": [\"obfs4 192.0.2.1:443\"]}}]}";
+		Bridges first = parse(json).get(0), second = parse(json).get(0);
+
+		assertSame(first.type, second.type);
+		assertSame(first.bridgeStrings.get(0), second.bridgeStrings.get(0));
+		assertThrows(UnsupportedOperationException.class, () -> first.bridgeStrings.add(""));
+	}
+
+	@Test
+	public void testParsesMap() throws IOException {
+		Map<String, List<Bridges>> map = ResponseParser.parseMap(toStream("{" +
+				"\"cn\": {\"settings\": [{\"bridges\": {\"type\": \"snowflake\", " +
+				"\"source\": \"builtin\", \"bridge_strings\": [\"snowflake 192.0.2.3:80\"]}}]}, " +
+				"\"us\": {\"settings\": []}}"));
+
+		assertEquals(asList("cn", "us"), new ArrayList<>(map.keySet()));
+		assertEquals("snowflake", map.get("cn").get(0).type);
+		assertEquals(asList("snowflake 192.0.2.3:80"), map.get("cn").get(0).bridgeStrings);
+		assertEquals(emptyList(), map.get("us"));
+		assertThrows(IOException.class, () -> ResponseParser.parseMap(toStream("{\"cn\": []}")));
+	}
+
+	@Test
+	public void testParsesBuiltin() throws IOException {
+		List<Bridges> bridges = ResponseParser.parseBuiltin(toStream("{" +
+				"\"meek\": [], \"obfs4\": [\"obfs4 192.0.2.1:443\", \"obfs4 192.0.2.2:443\"]}"));
+
+		assertEquals(2, bridges.size());
+		assertEquals("meek", bridges.get(0).type);
+		assertEquals("builtin", bridges.get(0).source);
+		assertEquals(emptyList(), bridges.get(0).bridgeStrings);
+		assertEquals(asList("obfs4 192.0.2.1:443", "obfs4 192.0.2.2:443"),
+				bridges.get(1).bridgeStrings);
+	}
+
+	@Test
+	public void testParsesCountries() throws IOException {
+		assertEquals(asList("cn", "ir"),
+				ResponseParser.parseCountries(toStream("[\"cn\", \"ir\"]")));
+		assertThrows(IOException.class, () -> ResponseParser.parseCountries(toStream("{}")));
+	}
+
+	@Test
+	public void testSkipsUnknownFields() throws IOException {
+		List<Bridges> bridges = parse("{\"extra\": {\"settings\": 1}, \"settings\": [" +
+				"{\"extra\": [1, {\"bridges\": 2}], \"bridges\": {\"type\": \"obfs4\", " +
+				"\"extra\": {}, \"source\": \"builtin\"}}]}");
+
+		assertEquals(1, bridges.size());
+		assertEquals("obfs4", bridges.get(0).type);
+		assertEquals(emptyList(), bridges.get(0).bridgeStrings);
+	}
+
+	@Test
+	public void testParsesEmptySettings() throws IOException {
+		assertEquals(emptyList(), parse("{\"settings\": []}"));
+	}
+
+	@Test
+	public void testRejectsMissingSettings() {
+		assertThrows(IOException.class, () -> parse(""));
+		assertThrows(IOException.class, () -> parse("[]"));
+		assertThrows(IOException.class, () -> parse("{\"errors\": [{\"code\": 404}]}"));
+	}
+
+	@Test
+	public void testRejectsSettingsThatAreNotAnArray() {
+		assertThrows(IOException.class, () -> parse("{\"settings\": {}}"));
+	}
+
+	@Test
+	public void testRejectsMissingBridges() {
+		assertThrows(IOException.class, () -> parse("{\"settings\": [{}]}"));
+		assertThrows(IOException.class, () -> parse("{\"settings\": [1]}"));
+	}
+
+	@Test
+	public void testRejectsMissingType() {
+		assertThrows(IOException.class, () ->
+				parse("{\"settings\": [{\"bridges\": {\"source\": \"builtin\"}}]}"));
+	}
+
+	@Test
+	public void testRejectsTruncatedResponse() {
+		assertThrows(IOException.class, () ->
+				parse("{\"settings\": [{\"bridges\": {\"type\": \"obfs4\""));
+	}
+
+	private List<Bridges> parse(String json) throws IOException {
+		return parseResponse(toStream(json));
+	}
+
+	private InputStream toStream(String json) {
+		return new ByteArrayInputStream(json.getBytes(Charset.forName("UTF-8")));
+	}
+}
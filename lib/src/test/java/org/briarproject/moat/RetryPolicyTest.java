@@ -0,0 +1,95 @@
+package org.briarproject.moat;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.security.GeneralSecurityException;
+import java.security.cert.CertificateException;
+
+import javax.net.ssl.SSLHandshakeException;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.briarproject.moat.MoatPhase.CERTIFICATE_VALIDATION;
+import static org.briarproject.moat.MoatPhase.LYREBIRD_START;
+import static org.briarproject.moat.MoatPhase.PARSE;
+import static org.briarproject.moat.MoatPhase.PORT_DISCOVERY;
+import static org.briarproject.moat.MoatPhase.REQUEST;
+import static org.briarproject.moat.MoatPhase.SOCKS_CONNECT;
+import static org.briarproject.moat.MoatPhase.TLS_HANDSHAKE;
+import static org.briarproject.moat.RetryPolicy.getHttpStatus;
+import static org.briarproject.moat.RetryPolicy.getPhase;
+import static org.briarproject.moat.RetryPolicy.isRetryable;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RetryPolicyTest {
+
+	@Test
+	public void testFailuresAreClassifiedByPhase() {
+		assertEquals(LYREBIRD_START, getPhase(new LyrebirdException(LYREBIRD_START, "")));
+		assertEquals(PORT_DISCOVERY, getPhase(new LyrebirdException(PORT_DISCOVERY, "")));
+		assertEquals(SOCKS_CONNECT, getPhase(new ConnectException()));
+		assertEquals(TLS_HANDSHAKE, getPhase(new SSLHandshakeException("")));
+		SSLHandshakeException certFailure = new SSLHandshakeException("");
+		certFailure.initCause(new CertificateException());
+		assertEquals(CERTIFICATE_VALIDATION, getPhase(certFailure));
+		assertEquals(REQUEST, getPhase(new HttpStatusException(503)));
+		assertEquals(REQUEST, getPhase(new IOException()));
+		assertEquals(PARSE, getPhase(new ParseException("")));
+
+		assertEquals(503, getHttpStatus(new HttpStatusException(503)));
+		assertEquals(-1, getHttpStatus(new IOException()));
+	}
+
+	@Test
+	public void testTransientFailuresAreRetryable() {
+		assertTrue(isRetryable(new LyrebirdException(PORT_DISCOVERY, "")));
+		assertTrue(isRetryable(new ConnectException()));
+		assertTrue(isRetryable(new SSLHandshakeException("")));
+		assertTrue(isRetryable(new SocketTimeoutException()));
+		assertTrue(isRetryable(new IOException()));
+		assertTrue(isRetryable(new HttpStatusException(429)));
+		assertTrue(isRetryable(new HttpStatusException(500)));
+		assertTrue(isRetryable(new HttpStatusException(503)));
+	}
+
+	@Test
+	public void testPermanentFailuresAreNotRetryable() {
+		assertFalse(isRetryable(new LyrebirdException(LYREBIRD_START, "")));
+		SSLHandshakeException certFailure = new SSLHandshakeException("");
+		certFailure.initCause(new CertificateException());
+		assertFalse(isRetryable(certFailure));
+		assertFalse(isRetryable(new HttpStatusException(400)));
+		assertFalse(isRetryable(new HttpStatusException(404)));
+		assertFalse(isRetryable(new ParseException("")));
+		assertFalse(isRetryable(new ClientSetupException(new GeneralSecurityException())));
+		// The call timed out or was cancelled
+		assertFalse(isRetryable(new InterruptedIOException()));
+	}
+
+	@Test
+	public void testBackoffDoublesUpToMaximum() {
+		RetryPolicy policy = new RetryPolicy.Builder().backoff(1, 5, SECONDS).build();
+		assertEquals(1000, policy.getBackoff(1));
+		assertEquals(2000, policy.getBackoff(2));
+		assertEquals(4000, policy.getBackoff(3));
+		assertEquals(5000, policy.getBackoff(4));
+		assertEquals(5000, policy.getBackoff(100));
+	}
+
+	@Test
+	public void testBudgetLimitsExtraAttempts() {
+		AttemptBudget budget = new AttemptBudget(0.5);
+		for (int i = 0; i < AttemptBudget.MAX_TOKENS; i++) assertTrue(budget.tryAcquire());
+		assertFalse(budget.tryAcquire());
+		budget.onRequest();
+		assertFalse(budget.tryAcquire());
+		budget.onRequest();
+		assertTrue(budget.tryAcquire());
+		assertFalse(budget.tryAcquire());
+	}
+}
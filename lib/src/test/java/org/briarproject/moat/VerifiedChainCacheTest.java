@@ -0,0 +1,68 @@
+package org.briarproject.moat;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+
+import static org.briarproject.nullsafety.NullSafety.requireNonNull;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class VerifiedChainCacheTest {
+
+	private final VerifiedChainCache cache = new VerifiedChainCache(2);
+
+	@Test
+	public void testChainIsVerifiedUntilFirstCertificateExpires() throws Exception {
+		X509Certificate[] chain = {createCert(1, 1000), createCert(2, 2000)};
+		ByteBuffer key = requireNonNull(VerifiedChainCache.getKey(chain));
+		assertFalse(cache.isVerified(key, 0));
+
+		cache.add(key, chain);
+		assertTrue(cache.isVerified(requireNonNull(VerifiedChainCache.getKey(chain)), 1000));
+		assertFalse(cache.isVerified(key, 1001));
+		// The expired entry has been removed
+		assertFalse(cache.isVerified(key, 0));
+	}
+
+	@Test
+	public void testChainsWithDifferentCertificatesHaveDifferentKeys() throws Exception {
+		X509Certificate leaf1 = createCert(1, 1000), leaf2 = createCert(2, 1000);
+		X509Certificate intermediate = createCert(3, 1000);
+		ByteBuffer key1 = VerifiedChainCache.getKey(new X509Certificate[]{leaf1, intermediate});
+		ByteBuffer key2 = VerifiedChainCache.getKey(new X509Certificate[]{leaf2, intermediate});
+		ByteBuffer key3 = VerifiedChainCache.getKey(new X509Certificate[]{leaf1});
+		assertNotEquals(key1, key2);
+		assertNotEquals(key1, key3);
+	}
+
+	@Test
+	public void testLeastRecentlyUsedChainIsEvicted() throws Exception {
+		X509Certificate[] chain1 = {createCert(1, 1000)};
+		X509Certificate[] chain2 = {createCert(2, 1000)};
+		X509Certificate[] chain3 = {createCert(3, 1000)};
+		ByteBuffer key1 = requireNonNull(VerifiedChainCache.getKey(chain1));
+		ByteBuffer key2 = requireNonNull(VerifiedChainCache.getKey(chain2));
+		ByteBuffer key3 = requireNonNull(VerifiedChainCache.getKey(chain3));
+		cache.add(key1, chain1);
+		cache.add(key2, chain2);
+		assertTrue(cache.isVerified(key1, 0));
+		cache.add(key3, chain3);
+
+		assertTrue(cache.isVerified(key1, 0));
+		assertFalse(cache.isVerified(key2, 0));
+		assertTrue(cache.isVerified(key3, 0));
+	}
+
+	private X509Certificate createCert(int id, long notAfter) throws Exception {
+		X509Certificate cert = mock(X509Certificate.class);
+		when(cert.getEncoded()).thenReturn(new byte[]{(byte) id});
+		when(cert.getNotAfter()).thenReturn(new Date(notAfter));
+		return cert;
+	}
+}
@@ -0,0 +1,165 @@
+package org.briarproject.moat;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URISyntaxException;
+
+import static java.lang.Integer.parseInt;
+
+/**
+ * A stand-in for lyrebird that speaks just enough of the pluggable transport
+ * protocol to be launched by {@link MoatApi}, and runs a SOCKS5 proxy that
+ * forwards every connection to a local port, regardless of the requested
+ * destination. Fronts with special prefixes can be used to simulate fronts
+ * that are blocked or throttled.
+ */
+@NotNullByDefault
+public class FakeLyrebird {
+
+	/**
+	 * Connections through fronts with this prefix fail immediately.
+	 */
+	public static final String UNREACHABLE_PREFIX = "unreachable";
+
+	/**
+	 * Connections through fronts with this prefix never receive any data.
+	 */
+	public static final String BLACKHOLE_PREFIX = "blackhole";
+
+	/**
+	 * Creates a shell script in the given directory that can be passed to
+	 * {@link MoatApi} as the lyrebird executable. The script runs this class
+	 * in a new JVM, forwarding connections to the given port.
+	 */
+	public static File createExecutable(File dir, int targetPort) throws IOException {
+		File script = new File(dir, "fake-lyrebird-" + targetPort + ".sh");
+		File java = new File(new File(System.getProperty("java.home"), "bin"), "java");
+		// This class doesn't need anything else on the classpath
+		File classpath;
+		try {
+			classpath = new File(FakeLyrebird.class.getProtectionDomain().getCodeSource()
+					.getLocation().toURI());
+		} catch (URISyntaxException e) {
+			throw new IOException(e);
+		}
+		try (PrintWriter w = new PrintWriter(script, "UTF-8")) {
+			w.println("#!/bin/sh");
+			w.println("exec '" + java.getAbsolutePath() + "' -cp '"
+					+ classpath.getAbsolutePath() + "' "
+					+ FakeLyrebird.class.getName() + " " + targetPort);
+		}
+		if (!script.setExecutable(true)) throw new IOException("Failed to make script executable");
+		return script;
+	}
+
+	public static void main(String[] args) throws IOException {
+		int targetPort = parseInt(args[0]);
+		ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		System.out.println("VERSION 1");
+		System.out.println("CMETHOD meek_lite socks5 127.0.0.1:" + serverSocket.getLocalPort());
+		System.out.println("CMETHODS DONE");
+		System.out.flush();
+		// Exit when stdin is closed or the parent kills us
+		Thread stdin = new Thread(() -> {
+			try {
+				//noinspection StatementWithEmptyBody
+				while (System.in.read() != -1) ;
+			} catch (IOException ignored) {
+			}
+			System.exit(0);
+		});
+		stdin.setDaemon(true);
+		stdin.start();
+		while (true) {
+			Socket client = serverSocket.accept();
+			Thread t = new Thread(() -> handle(client, targetPort));
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	private static void handle(Socket client, int targetPort) {
+		try (Socket c = client) {
+			DataInputStream in = new DataInputStream(c.getInputStream());
+			OutputStream out = c.getOutputStream();
+			// Greeting
+			if (in.readUnsignedByte() != 5) return;
+			in.skipBytes(in.readUnsignedByte());
+			out.write(new byte[] {5, 2});
+			// Username/password authentication. Lyrebird takes the meek URL
+			// and front from the username, and any password is accepted
+			in.readUnsignedByte();
+			byte[] username = new byte[in.readUnsignedByte()];
+			in.readFully(username);
+			in.skipBytes(in.readUnsignedByte());
+			out.write(new byte[] {1, 0});
+			String front = getFront(new String(username, "UTF-8"));
+			// Connect request
+			in.skipBytes(3);
+			int addressType = in.readUnsignedByte();
+			if (addressType == 1) in.skipBytes(4);
+			else if (addressType == 3) in.skipBytes(in.readUnsignedByte());
+			else if (addressType == 4) in.skipBytes(16);
+			else return;
+			in.skipBytes(2);
+			if (front.startsWith(UNREACHABLE_PREFIX)) {
+				out.write(new byte[] {5, 4, 0, 1, 0, 0, 0, 0, 0, 0});
+				return;
+			}
+			if (front.startsWith(BLACKHOLE_PREFIX)) {
+				// Accept the connection but never forward any data
+				while (in.read() != -1) ;
+				return;
+			}
+			Socket target;
+			try {
+				target = new Socket(InetAddress.getLoopbackAddress(), targetPort);
+			} catch (IOException e) {
+				out.write(new byte[] {5, 5, 0, 1, 0, 0, 0, 0, 0, 0});
+				return;
+			}
+			out.write(new byte[] {5, 0, 0, 1, 0, 0, 0, 0, 0, 0});
+			out.flush();
+			try (Socket t = target) {
+				Thread up = new Thread(() -> copy(in, t));
+				up.setDaemon(true);
+				up.start();
+				copy(t.getInputStream(), out);
+			}
+		} catch (IOException ignored) {
+		}
+	}
+
+	private static String getFront(String username) {
+		for (String arg : username.split(";")) {
+			if (arg.startsWith("front=")) return arg.substring(6);
+		}
+		return "";
+	}
+
+	private static void copy(InputStream in, Socket s) {
+		try {
+			copy(in, s.getOutputStream());
+			s.shutdownOutput();
+		} catch (IOException ignored) {
+		}
+	}
+
+	private static void copy(InputStream in, OutputStream out) throws IOException {
+		byte[] buf = new byte[8192];
+		int read;
+		while ((read = in.read(buf)) != -1) {
+			out.write(buf, 0, read);
+			out.flush();
+		}
+	}
+}
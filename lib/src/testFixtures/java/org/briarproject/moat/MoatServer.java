@@ -0,0 +1,302 @@
+package org.briarproject.moat;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.newSetFromMap;
+import static java.util.Collections.unmodifiableList;
+import static java.util.concurrent.Executors.newCachedThreadPool;
+import static javax.net.ssl.KeyManagerFactory.getDefaultAlgorithm;
+
+/**
+ * A local stand-in for the Moat server that answers circumvention/settings,
+ * map, builtin and countries requests over HTTPS with a configurable delay
+ * and number of bridges.
+ * The server's certificate is issued to bridges.torproject.org and is trusted
+ * by {@link #getTrustManager()}.
+ */
+@NotNullByDefault
+public class MoatServer implements Closeable {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final char[] PASSWORD = "moatpass".toCharArray();
+	private static final Pattern COUNTRY = Pattern.compile("\"country\"\\s*:\\s*\"(\\w*)\"");
+
+	/**
+	 * The countries included in circumvention/map and countries responses.
+	 */
+	public static final List<String> COUNTRIES = unmodifiableList(asList("cn", "ir", "ru", "tm"));
+
+	private final HttpsServer server;
+	private final ExecutorService executor = newCachedThreadPool();
+	private final AtomicInteger requests = new AtomicInteger();
+	private final X509TrustManager trustManager;
+
+	private final Set<InetSocketAddress> clientAddresses = newSetFromMap(new ConcurrentHashMap<>());
+	private final AtomicInteger activeRequests = new AtomicInteger();
+	private final AtomicInteger maxActiveRequests = new AtomicInteger();
+	private final AtomicInteger delayedRequests = new AtomicInteger();
+	private final AtomicInteger failedRequests = new AtomicInteger();
+
+	private volatile long delayMs = 0;
+	private volatile int failureStatus = 503;
+	private volatile int bridgesPerType = 2;
+
+	public MoatServer() throws IOException {
+		try {
+			KeyStore keyStore = loadKeyStore("moat-server.p12");
+			KeyManagerFactory kmf = KeyManagerFactory.getInstance(getDefaultAlgorithm());
+			kmf.init(keyStore, PASSWORD);
+			SSLContext sslContext = SSLContext.getInstance("TLS");
+			sslContext.init(kmf.getKeyManagers(), null, null);
+			TrustManagerFactory tmf =
+					TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+			tmf.init(loadKeyStore("moat-trust.p12"));
+			X509TrustManager x509 = null;
+			for (TrustManager tm : tmf.getTrustManagers()) {
+				if (tm instanceof X509TrustManager) x509 = (X509TrustManager) tm;
+			}
+			if (x509 == null) throw new IOException("No X-509 trust manager");
+			trustManager = x509;
+			server = HttpsServer.create(
+					new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+			server.setHttpsConfigurator(new HttpsConfigurator(sslContext));
+		} catch (GeneralSecurityException e) {
+			throw new IOException(e);
+		}
+		server.setExecutor(executor);
+		server.createContext("/moat/circumvention/settings", this::handleSettings);
+		server.createContext("/moat/circumvention/map",
+				e -> respond(e, createMapJson(bridgesPerType)));
+		server.createContext("/moat/circumvention/builtin",
+				e -> respond(e, createBuiltinJson(bridgesPerType)));
+		server.createContext("/moat/circumvention/countries",
+				e -> respond(e, createCountriesJson()));
+		server.start();
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	public X509TrustManager getTrustManager() {
+		return trustManager;
+	}
+
+	public int getRequestCount() {
+		return requests.get();
+	}
+
+	/**
+	 * Returns the number of connections that requests have been received on.
+	 */
+	public int getConnectionCount() {
+		return clientAddresses.size();
+	}
+
+	/**
+	 * Returns the largest number of requests that have been handled at the
+	 * same time.
+	 */
+	public int getMaxConcurrentRequests() {
+		return maxActiveRequests.get();
+	}
+
+	/**
+	 * Returns a builder for an API that connects to this server through the
+	 * given lyrebird executable, which should be created by
+	 * {@link FakeLyrebird#createExecutable(File, int)}.
+	 */
+	public MoatApi.Builder createApiBuilder(File lyrebirdExecutable, File lyrebirdDir) {
+		return new MoatApi.Builder(lyrebirdExecutable, lyrebirdDir, "https://meek.example/",
+				"front.example").trustManager(trustManager);
+	}
+
+	public void setDelay(long delayMs) {
+		setDelay(delayMs, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Delays the next given number of responses.
+	 */
+	public void setDelay(long delayMs, int count) {
+		this.delayMs = delayMs;
+		delayedRequests.set(count);
+	}
+
+	/**
+	 * Responds to the next given number of requests with the given HTTP
+	 * status code.
+	 */
+	public void setFailures(int count, int status) {
+		failureStatus = status;
+		failedRequests.set(count);
+	}
+
+	public void setBridgesPerType(int bridgesPerType) {
+		this.bridgesPerType = bridgesPerType;
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Returns a circumvention/settings response with obfs4 and snowflake
+	 * bridges for any country except "us", which gets an empty response.
+	 */
+	public static String createSettingsJson(String country, int bridgesPerType) {
+		if (country.equals("us")) return "{\"settings\": []}";
+		StringBuilder sb = new StringBuilder("{\"settings\": [");
+		appendBridges(sb, "obfs4", country, bridgesPerType);
+		sb.append(", ");
+		appendBridges(sb, "snowflake", country, bridgesPerType);
+		sb.append("], \"country\": \"").append(country).append("\"}");
+		return sb.toString();
+	}
+
+	/**
+	 * Returns a circumvention/map response with the settings for each of
+	 * {@link #COUNTRIES}.
+	 */
+	public static String createMapJson(int bridgesPerType) {
+		StringBuilder sb = new StringBuilder("{");
+		for (String country : COUNTRIES) {
+			if (sb.length() > 1) sb.append(", ");
+			sb.append('"').append(country).append("\": ")
+					.append(createSettingsJson(country, bridgesPerType));
+		}
+		return sb.append('}').toString();
+	}
+
+	/**
+	 * Returns a circumvention/builtin response with obfs4 and snowflake
+	 * bridges.
+	 */
+	public static String createBuiltinJson(int bridgesPerType) {
+		StringBuilder sb = new StringBuilder("{");
+		for (String type : asList("obfs4", "snowflake")) {
+			if (sb.length() > 1) sb.append(", ");
+			sb.append('"').append(type).append("\": [");
+			for (int i = 0; i < bridgesPerType; i++) {
+				if (i > 0) sb.append(", ");
+				sb.append('"').append(createBridgeLine(type, "", i)).append('"');
+			}
+			sb.append(']');
+		}
+		return sb.append('}').toString();
+	}
+
+	public static String createCountriesJson() {
+		StringBuilder sb = new StringBuilder("[");
+		for (String country : COUNTRIES) {
+			if (sb.length() > 1) sb.append(", ");
+			sb.append('"').append(country).append('"');
+		}
+		return sb.append(']').toString();
+	}
+
+	private static void appendBridges(StringBuilder sb, String type, String country, int count) {
+		sb.append("{\"bridges\": {\"type\": \"").append(type)
+				.append("\", \"source\": \"builtin\", \"bridge_strings\": [");
+		for (int i = 0; i < count; i++) {
+			if (i > 0) sb.append(", ");
+			sb.append('"').append(createBridgeLine(type, country, i)).append('"');
+		}
+		sb.append("]}}");
+	}
+
+	public static String createBridgeLine(String type, String country, int index) {
+		int a = index / 250 % 250 + 1, b = index % 250 + 1;
+		String fingerprint = String.format("%040X", (long) country.hashCode() * 1000 + index);
+		if (type.equals("snowflake")) {
+			return "snowflake 192.0.2." + b + ":80 " + fingerprint
+					+ " fingerprint=" + fingerprint
+					+ " url=https://snowflake-broker.torproject.net.global.prod.fastly.net/"
+					+ " front=foursquare.com ice=stun:stun.l.google.com:19302 utls-imitate=hellorandomizedalpn";
+		}
+		return type + " 198.51." + a + "." + b + ":443 " + fingerprint
+				+ " cert=p9L6+25s8bnfkye1ZxFeAE4mAGY7DH4Gaj7dxngIIzP9BtqrHHwZXdjMK0RVIQ34C7aqZw"
+				+ " iat-mode=0";
+	}
+
+	private void handleSettings(HttpExchange exchange) throws IOException {
+		String request = new String(readFully(exchange.getRequestBody()), UTF_8);
+		Matcher m = COUNTRY.matcher(request);
+		String country = m.find() ? m.group(1) : "";
+		respond(exchange, createSettingsJson(country, bridgesPerType));
+	}
+
+	private void respond(HttpExchange exchange, String json) throws IOException {
+		requests.incrementAndGet();
+		clientAddresses.add(exchange.getRemoteAddress());
+		int active = activeRequests.incrementAndGet();
+		maxActiveRequests.accumulateAndGet(active, Math::max);
+		try {
+			if (failedRequests.getAndDecrement() > 0) {
+				exchange.sendResponseHeaders(failureStatus, -1);
+				return;
+			}
+			if (delayMs > 0 && delayedRequests.getAndDecrement() > 0) Thread.sleep(delayMs);
+			byte[] response = json.getBytes(UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "application/vnd.api+json");
+			exchange.sendResponseHeaders(200, response.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(response);
+			}
+		} catch (InterruptedException e) {
+			exchange.sendResponseHeaders(503, -1);
+		} finally {
+			activeRequests.decrementAndGet();
+			exchange.close();
+		}
+	}
+
+	private KeyStore loadKeyStore(String name) throws IOException, GeneralSecurityException {
+		KeyStore keyStore = KeyStore.getInstance("PKCS12");
+		try (InputStream in = getClass().getClassLoader().getResourceAsStream(name)) {
+			if (in == null) throw new IOException("Missing resource " + name);
+			keyStore.load(in, PASSWORD);
+		}
+		return keyStore;
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		int read;
+		while ((read = in.read(buf)) != -1) out.write(buf, 0, read);
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,213 @@
+package org.briarproject.moat.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.briarproject.moat.Bridges;
+import org.briarproject.moat.MoatApi;
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.logging.Level.INFO;
+import static java.util.logging.Logger.getLogger;
+
+/**
+ * An HTTP server that answers circumvention/settings requests from an
+ * in-memory index, so that many local clients can share the results of a
+ * single {@link MoatApi} and its lyrebird process. The index is refreshed in
+ * the background with one circumvention/map request for all countries, plus
+ * one request for the default settings. Client requests never cause
+ * upstream requests.
+ * <p>
+ * Until the first refresh succeeds, requests get a 503 response. If a
+ * refresh fails, the previous index is served until the next refresh.
+ * <p>
+ * The JDK's HTTP server writes the headers and body of a response
+ * separately, so with Nagle's algorithm enabled, each response on a
+ * kept-alive connection waits for the client's delayed ACK. Applications
+ * that serve many requests per connection should start the JVM with
+ * {@code -Dsun.net.httpserver.nodelay=true}, which applies to every HTTP
+ * server in the process.
+ */
+@ThreadSafe
+@NotNullByDefault
+public class BridgeGateway implements Closeable {
+
+	private static final Logger LOG = getLogger(BridgeGateway.class.getName());
+
+	private static final String SETTINGS_PATH = "/moat/circumvention/settings";
+	private static final String CONTENT_TYPE = "application/vnd.api+json";
+	private static final int MAX_REQUEST_BYTES = 4096;
+
+	private final MoatApi api;
+	private final long refreshIntervalMs;
+	private final BridgeIndex index = new BridgeIndex();
+	private final HttpServer server;
+	private final ExecutorService handlerExecutor;
+	private final ScheduledExecutorService refreshExecutor;
+
+	@GuardedBy("this")
+	private boolean started = false;
+
+	/**
+	 * Creates a gateway that listens on the given address and handles
+	 * requests on the given number of threads. The caller remains
+	 * responsible for closing the API.
+	 */
+	public BridgeGateway(MoatApi api, InetSocketAddress address, int threads,
+			long refreshInterval, TimeUnit unit) throws IOException {
+		if (threads < 1 || refreshInterval < 1) throw new IllegalArgumentException();
+		this.api = api;
+		refreshIntervalMs = unit.toMillis(refreshInterval);
+		handlerExecutor = newFixedThreadPool(threads, new NamedThreadFactory("MoatGateway"));
+		refreshExecutor = newSingleThreadScheduledExecutor(
+				new NamedThreadFactory("MoatGatewayRefresh"));
+		server = HttpServer.create(address, 0);
+		server.setExecutor(handlerExecutor);
+		server.createContext(SETTINGS_PATH, this::handleSettings);
+	}
+
+	/**
+	 * Starts answering requests and refreshing the index. The first refresh
+	 * starts immediately.
+	 */
+	public synchronized void start() {
+		if (started) throw new IllegalStateException();
+		started = true;
+		refreshExecutor.scheduleWithFixedDelay(this::refreshQuietly, 0, refreshIntervalMs,
+				MILLISECONDS);
+		server.start();
+	}
+
+	/**
+	 * Returns the port the gateway is listening on.
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * Returns the time when the index was last refreshed, or 0 if it hasn't
+	 * been loaded yet.
+	 */
+	public long getLastRefreshTime() {
+		return index.getTimestamp();
+	}
+
+	/**
+	 * Refreshes the index from upstream, replacing it only if all requests
+	 * succeed.
+	 */
+	public void refresh() throws IOException {
+		Map<String, List<Bridges>> countries = api.getMap();
+		List<Bridges> defaults = api.get();
+		index.update(countries, defaults, System.currentTimeMillis());
+		if (LOG.isLoggable(INFO)) {
+			LOG.info("Refreshed settings for " + index.getCountryCount() + " countries");
+		}
+	}
+
+	private void refreshQuietly() {
+		try {
+			refresh();
+		} catch (IOException e) {
+			LOG.warning("Failed to refresh settings: " + e);
+		}
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		refreshExecutor.shutdownNow();
+		handlerExecutor.shutdownNow();
+	}
+
+	private void handleSettings(HttpExchange exchange) throws IOException {
+		try {
+			String method = exchange.getRequestMethod();
+			if (!method.equals("POST") && !method.equals("GET")) {
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+			byte[] request = readRequest(exchange.getRequestBody());
+			if (request == null) {
+				exchange.sendResponseHeaders(413, -1);
+				return;
+			}
+			String country;
+			try {
+				country = SettingsJson.readCountry(new ByteArrayInputStream(request));
+			} catch (IOException e) {
+				exchange.sendResponseHeaders(400, -1);
+				return;
+			}
+			byte[] response = index.getResponse(country);
+			if (response == null) {
+				exchange.sendResponseHeaders(503, -1);
+				return;
+			}
+			exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+			exchange.sendResponseHeaders(200, response.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(response);
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Reads a request body, or returns null if it's too large.
+	 */
+	@Nullable
+	private static byte[] readRequest(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[1024];
+		int read;
+		while ((read = in.read(buf)) != -1) {
+			out.write(buf, 0, read);
+			if (out.size() > MAX_REQUEST_BYTES) return null;
+		}
+		return out.toByteArray();
+	}
+
+	@NotNullByDefault
+	private static class NamedThreadFactory implements ThreadFactory {
+
+		private final String name;
+		private final AtomicInteger nextId = new AtomicInteger();
+
+		private NamedThreadFactory(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, name + "-" + nextId.getAndIncrement());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
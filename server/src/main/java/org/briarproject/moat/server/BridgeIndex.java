@@ -0,0 +1,91 @@
+package org.briarproject.moat.server;
+
+import org.briarproject.moat.Bridges;
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import static java.util.Collections.emptyList;
+import static java.util.Locale.ROOT;
+
+/**
+ * An in-memory index of the settings for each country, which is replaced as
+ * a whole when it's refreshed. Responses are serialised when the index is
+ * updated, so lookups for indexed countries never block or allocate.
+ */
+@ThreadSafe
+@NotNullByDefault
+class BridgeIndex {
+
+	@Immutable
+	@NotNullByDefault
+	private static class Snapshot {
+
+		private final Map<String, byte[]> responses;
+		private final byte[] defaultResponse;
+		private final long timestamp;
+
+		private Snapshot(Map<String, byte[]> responses, byte[] defaultResponse, long timestamp) {
+			this.responses = responses;
+			this.defaultResponse = defaultResponse;
+			this.timestamp = timestamp;
+		}
+	}
+
+	@Nullable
+	private volatile Snapshot snapshot = null;
+
+	/**
+	 * Replaces the index with the given settings for each country and the
+	 * given default settings, which are served to requests that don't
+	 * specify a country.
+	 */
+	void update(Map<String, List<Bridges>> countries, List<Bridges> defaults, long now)
+			throws IOException {
+		Map<String, byte[]> responses = new HashMap<>();
+		for (Map.Entry<String, List<Bridges>> e : countries.entrySet()) {
+			String country = e.getKey().trim().toLowerCase(ROOT);
+			responses.put(country, SettingsJson.write(e.getValue(), country));
+		}
+		snapshot = new Snapshot(responses, SettingsJson.write(defaults, ""), now);
+	}
+
+	/**
+	 * Returns the response for the given country, or for requests that don't
+	 * specify a country if the country is empty. Countries that aren't in the
+	 * index get an empty list of settings. Returns null if the index hasn't
+	 * been loaded yet.
+	 */
+	@Nullable
+	byte[] getResponse(String country) throws IOException {
+		Snapshot s = snapshot;
+		if (s == null) return null;
+		if (country.isEmpty()) return s.defaultResponse;
+		byte[] response = s.responses.get(country);
+		return response == null ? SettingsJson.write(emptyList(), country) : response;
+	}
+
+	/**
+	 * Returns the number of countries in the index.
+	 */
+	int getCountryCount() {
+		Snapshot s = snapshot;
+		return s == null ? 0 : s.responses.size();
+	}
+
+	/**
+	 * Returns the time when the index was last updated, or 0 if it hasn't
+	 * been loaded yet.
+	 */
+	long getTimestamp() {
+		Snapshot s = snapshot;
+		return s == null ? 0 : s.timestamp;
+	}
+}
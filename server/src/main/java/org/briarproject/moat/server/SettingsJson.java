@@ -0,0 +1,80 @@
+package org.briarproject.moat.server;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import org.briarproject.moat.Bridges;
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import static com.fasterxml.jackson.core.JsonToken.FIELD_NAME;
+import static com.fasterxml.jackson.core.JsonToken.START_OBJECT;
+import static com.fasterxml.jackson.core.JsonToken.VALUE_STRING;
+import static java.util.Locale.ROOT;
+
+/**
+ * Reads circumvention/settings requests and writes responses in the format
+ * used by the Moat API.
+ */
+@NotNullByDefault
+class SettingsJson {
+
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+	/**
+	 * Returns the country code from a request, or an empty string if the
+	 * request doesn't specify a country.
+	 */
+	static String readCountry(InputStream in) throws IOException {
+		try (JsonParser p = JSON_FACTORY.createParser(in)) {
+			JsonToken token = p.nextToken();
+			// An empty request asks for the default settings
+			if (token == null) return "";
+			if (token != START_OBJECT) throw new IOException("request not an object");
+			String country = "";
+			while (p.nextToken() == FIELD_NAME) {
+				String name = p.getCurrentName();
+				JsonToken value = p.nextToken();
+				if (name.equals("country") && value == VALUE_STRING) {
+					country = p.getText().trim().toLowerCase(ROOT);
+				} else {
+					p.skipChildren();
+				}
+			}
+			return country;
+		}
+	}
+
+	/**
+	 * Returns a response containing the given settings, and the given
+	 * country code if it's not empty.
+	 */
+	static byte[] write(List<Bridges> settings, String country) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (JsonGenerator g = JSON_FACTORY.createGenerator(out)) {
+			g.writeStartObject();
+			g.writeArrayFieldStart("settings");
+			for (Bridges b : settings) {
+				g.writeStartObject();
+				g.writeObjectFieldStart("bridges");
+				g.writeStringField("type", b.type);
+				g.writeStringField("source", b.source);
+				g.writeArrayFieldStart("bridge_strings");
+				for (String line : b.bridgeStrings) g.writeString(line);
+				g.writeEndArray();
+				g.writeEndObject();
+				g.writeEndObject();
+			}
+			g.writeEndArray();
+			if (!country.isEmpty()) g.writeStringField("country", country);
+			g.writeEndObject();
+		}
+		return out.toByteArray();
+	}
+}
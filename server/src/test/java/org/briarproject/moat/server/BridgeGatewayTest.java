@@ -0,0 +1,122 @@
+package org.briarproject.moat.server;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.briarproject.moat.FakeLyrebird;
+import org.briarproject.moat.MoatApi;
+import org.briarproject.moat.MoatServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.Charset;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+public class BridgeGatewayTest {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	@TempDir
+	private File tempFolder;
+	private MoatServer server;
+	private MoatApi api;
+	private BridgeGateway gateway;
+
+	@BeforeEach
+	public void setup() throws IOException {
+		// The fake lyrebird is launched by a shell script
+		assumeTrue(new File("/bin/sh").exists());
+		server = new MoatServer();
+		File lyrebird = FakeLyrebird.createExecutable(tempFolder, server.getPort());
+		api = server.createApiBuilder(lyrebird, tempFolder).build();
+		gateway = new BridgeGateway(api,
+				new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 4, 1, HOURS);
+	}
+
+	@AfterEach
+	public void tearDown() {
+		if (gateway != null) gateway.close();
+		if (api != null) api.close();
+		if (server != null) server.close();
+	}
+
+	@Test
+	public void testUnavailableUntilRefreshed() throws Exception {
+		// The first refresh won't finish during the test
+		server.setDelay(60_000);
+		gateway.start();
+		post("{\"country\": \"cn\"}", 503);
+		assertEquals(0, gateway.getLastRefreshTime());
+	}
+
+	@Test
+	public void testServesSettingsFromIndex() throws Exception {
+		gateway.refresh();
+		assertTrue(gateway.getLastRefreshTime() > 0);
+		int upstream = server.getRequestCount();
+		gateway.start();
+
+		for (int i = 0; i < 10; i++) {
+			JsonNode cn = mapper.readTree(post("{\"country\": \"CN\"}", 200));
+			assertEquals("cn", cn.get("country").asText());
+			JsonNode bridges = cn.get("settings").get(0).get("bridges");
+			assertEquals("obfs4", bridges.get("type").asText());
+			assertEquals(MoatServer.createBridgeLine("obfs4", "cn", 0),
+					bridges.get("bridge_strings").get(0).asText());
+		}
+		// A request without a country gets the default settings
+		assertEquals(2, mapper.readTree(post("", 200)).get("settings").size());
+		// A country that isn't in the index gets no settings
+		assertEquals(0, mapper.readTree(post("{\"country\": \"xx\"}", 200))
+				.get("settings").size());
+		post("[", 400);
+		// Client requests are answered without upstream requests, apart
+		// from the refresh that may have started in the background
+		assertTrue(server.getRequestCount() - upstream <= 2);
+	}
+
+	private String post(String body, int expectedStatus) throws IOException {
+		URL url = new URL("http://127.0.0.1:" + gateway.getPort()
+				+ "/moat/circumvention/settings");
+		HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+		try {
+			conn.setRequestMethod("POST");
+			conn.setDoOutput(true);
+			try (OutputStream out = conn.getOutputStream()) {
+				out.write(body.getBytes(UTF_8));
+			}
+			assertEquals(expectedStatus, conn.getResponseCode());
+			if (expectedStatus != 200) return "";
+			try (InputStream in = conn.getInputStream()) {
+				return new String(readFully(in), UTF_8);
+			}
+		} finally {
+			conn.disconnect();
+		}
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		int read;
+		while ((read = in.read(buf)) != -1) out.write(buf, 0, read);
+		return out.toByteArray();
+	}
+}